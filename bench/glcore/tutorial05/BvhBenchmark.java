@@ -0,0 +1,94 @@
+package glcore.tutorial05;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of a hierarchy over small random triangles, and a
+ * ray cast through it compared with testing every triangle.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BvhBenchmark {
+
+    @Param({ "10000", "200000" })
+    private int triangleCount;
+    
+    private FloatBuffer positions;
+    private Bvh bvh;
+    private Bvh.Intersector intersector;
+    private Bvh.Hit hit;
+    private Random random;
+    
+    @Setup
+    public void setup() {
+        random = new Random(0);
+        positions = ByteBuffer.allocateDirect(4 * 9 * triangleCount)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        for (int t = 0; t < triangleCount; t++) {
+            float x = random.nextFloat() * 100.0f;
+            float y = random.nextFloat() * 100.0f;
+            float z = random.nextFloat() * 100.0f;
+            for (int v = 0; v < 3; v++) {
+                positions.put(x + random.nextFloat());
+                positions.put(y + random.nextFloat());
+                positions.put(z + random.nextFloat());
+            }
+        }
+        positions.flip();
+        bvh = Bvh.buildTriangles(positions, ForkJoinPool.commonPool());
+        intersector = Bvh.triangleIntersector(positions);
+        hit = new Bvh.Hit();
+    }
+    
+    @Benchmark
+    public Bvh build() {
+        return Bvh.buildTriangles(positions, ForkJoinPool.commonPool());
+    }
+    
+    @Benchmark
+    public int raycast() {
+        hit.primitive = -1;
+        hit.distance = Float.POSITIVE_INFINITY;
+        bvh.raycast(-10.0f, random.nextFloat() * 100.0f, random.nextFloat() * 100.0f, 1.0f, 0.0f, 0.0f, intersector, hit);
+        return hit.primitive;
+    }
+    
+    @Benchmark
+    public int raycastLinear() {
+        float oy = random.nextFloat() * 100.0f;
+        float oz = random.nextFloat() * 100.0f;
+        float closest = Float.POSITIVE_INFINITY;
+        int primitive = -1;
+        for (int t = 0; t < triangleCount; t++) {
+            float distance = intersector.intersect(t, -10.0f, oy, oz, 1.0f, 0.0f, 0.0f);
+            if (distance < closest) {
+                closest = distance;
+                primitive = t;
+            }
+        }
+        return primitive;
+    }
+    
+}
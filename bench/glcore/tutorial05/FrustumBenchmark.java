@@ -0,0 +1,71 @@
+package glcore.tutorial05;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the culling of 100000 bounding spheres scattered around the camera,
+ * one at a time and as a batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrustumBenchmark {
+
+    private static final int COUNT = 100000;
+    
+    private Frustum frustum;
+    private float[] x;
+    private float[] y;
+    private float[] z;
+    private float[] radii;
+    private int[] visible;
+    
+    @Setup
+    public void setup() {
+        frustum = new Frustum().set(Matrix44.frustum(-1.0f, 1.0f, -1.0f, 1.0f, 1.0f, 100.0f));
+        Random random = new Random(0);
+        x = new float[COUNT];
+        y = new float[COUNT];
+        z = new float[COUNT];
+        radii = new float[COUNT];
+        visible = new int[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            x[i] = random.nextFloat() * 200.0f - 100.0f;
+            y[i] = random.nextFloat() * 200.0f - 100.0f;
+            z[i] = random.nextFloat() * 200.0f - 100.0f;
+            radii[i] = random.nextFloat();
+        }
+    }
+    
+    @Benchmark
+    public int intersectsSphere() {
+        int count = 0;
+        for (int i = 0; i < COUNT; i++) {
+            if (frustum.intersectsSphere(x[i], y[i], z[i], radii[i])) {
+                visible[count++] = i;
+            }
+        }
+        return count;
+    }
+    
+    @Benchmark
+    public int cull() {
+        return frustum.cull(x, y, z, radii, COUNT, visible);
+    }
+    
+}
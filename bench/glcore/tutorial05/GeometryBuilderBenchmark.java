@@ -0,0 +1,115 @@
+package glcore.tutorial05;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.opengl.GL4;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the packing of vertex data into direct buffers, one buffer per
+ * attribute or interleaved, and its quantization to compact formats. The
+ * staging buffers come from the pool of the builder, except for the unpooled
+ * baseline which allocates a direct buffer per call. The packing throughput
+ * is reported in MB/s by the megabytes counter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeometryBuilderBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double megabytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+    
+    @Param({ "108", "300000" })
+    private int floatCount;
+    
+    private GeometryBuilder builder;
+    private GeometryBuilder interleavedBuilder;
+    private int[] offsets;
+    private int stride;
+    private float[] data;
+    
+    @Setup
+    public void setup() {
+        builder = new GeometryBuilder();
+        data = new float[floatCount];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        // positions and normals, as in Tutorial05
+        interleavedBuilder = new GeometryBuilder()
+                .addAtribute(0, 3, GL4.GL_FLOAT, data)
+                .addAtribute(1, 3, GL4.GL_FLOAT, data)
+                .setVertexCount(floatCount / 3)
+                .setInterleaved(true);
+        offsets = new int[2];
+        stride = interleavedBuilder.layout(offsets);
+    }
+    
+    @Benchmark
+    public Buffer makeFloatBuffer(Counters counters) {
+        counters.megabytes += 4.0 * data.length / (1024 * 1024);
+        Buffer buffer = builder.makeFloatBuffer(data);
+        // returns the staging buffer to the pool
+        builder.reset();
+        return buffer;
+    }
+    
+    @Benchmark
+    public Buffer makeFloatBufferUnpooled(Counters counters) {
+        counters.megabytes += 4.0 * data.length / (1024 * 1024);
+        return ByteBuffer.allocateDirect(4 * data.length)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer()
+                .put(data)
+                .flip();
+    }
+    
+    @Benchmark
+    public Buffer interleave(Counters counters) {
+        counters.megabytes += 2 * 4.0 * data.length / (1024 * 1024);
+        ByteBuffer buffer = interleavedBuilder.interleave(stride, offsets);
+        interleavedBuilder.release(buffer);
+        return buffer;
+    }
+    
+    @Benchmark
+    public Buffer packHalfFloat(Counters counters) {
+        counters.megabytes += 4.0 * data.length / (1024 * 1024);
+        return VertexPacking.pack(GL4.GL_HALF_FLOAT, 3, data);
+    }
+    
+    @Benchmark
+    public Buffer packInt2101010(Counters counters) {
+        counters.megabytes += 4.0 * data.length / (1024 * 1024);
+        return VertexPacking.pack(GL4.GL_INT_2_10_10_10_REV, 3, data);
+    }
+    
+}
@@ -0,0 +1,158 @@
+package glcore.tutorial05;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction and multiplication of matrices, as done for
+ * every object in Tutorial05.display.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Matrix44Benchmark {
+
+    @State(Scope.Thread)
+    public static class Vertices {
+        @Param({ "1000", "100000" })
+        public int count;
+        public float[] data;
+        
+        @Setup
+        public void setup() {
+            data = new float[4 * count];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = i % 4 == 3 ? 1.0f : i % 7;
+            }
+        }
+    }
+    
+    private Matrix44 a;
+    private Matrix44 b;
+    private Matrix44 dest;
+    private Matrix44 translation;
+    private Matrix44 rotationX;
+    private Matrix44 rotationY;
+    private float[] vec4;
+    private float[] product;
+    private float angle;
+    
+    @Setup
+    public void setup() {
+        a = Matrix44.frustum(-2.0f, 2.0f, -2.0f, 2.0f, 1.0f, 10.0f);
+        b = Matrix44.rotate(30.0f, 0.0f, 1.0f, 0.0f);
+        dest = new Matrix44();
+        translation = Matrix44.translate(0.0f, 0.0f, -3.0f);
+        rotationX = Matrix44.rotate(30.0f, 1.0f, 0.0f, 0.0f);
+        rotationY = Matrix44.rotate(60.0f, 0.0f, 1.0f, 0.0f);
+        vec4 = new float[] { 1.0f, 2.0f, 3.0f, 1.0f };
+        product = new float[16];
+    }
+    
+    @Benchmark
+    public Matrix44 identity() {
+        return Matrix44.identity();
+    }
+    
+    @Benchmark
+    public Matrix44 frustum() {
+        return Matrix44.frustum(-2.0f, 2.0f, -2.0f, 2.0f, 1.0f, 10.0f);
+    }
+    
+    @Benchmark
+    public Matrix44 rotate() {
+        return Matrix44.rotate(angle++, 1.0f, 0.0f, 0.0f);
+    }
+    
+    @Benchmark
+    public Matrix44 setRotate() {
+        return dest.setRotate(angle++, 1.0f, 0.0f, 0.0f);
+    }
+    
+    @Benchmark
+    public Matrix44 mult() {
+        return a.mult(b);
+    }
+    
+    @Benchmark
+    public Matrix44 multInto() {
+        return a.multInto(b, dest);
+    }
+    
+    @Benchmark
+    public float[] multArrays() {
+        // on the SIMD path when run with --add-modules jdk.incubator.vector
+        Matrix44.mult(a.raw(), 0, b.raw(), 0, product, 0);
+        return product;
+    }
+    
+    @Benchmark
+    public float[] multArraysScalar() {
+        Matrix44.multScalar(a.raw(), 0, b.raw(), 0, product, 0);
+        return product;
+    }
+    
+    @Benchmark
+    public Matrix44 translateRotateRotate() {
+        return Matrix44.translate(0.0f, 0.0f, -3.0f)
+                .mult(Matrix44.rotate(angle++, 1.0f, 0.0f, 0.0f))
+                .mult(Matrix44.rotate(angle, 0.0f, 1.0f, 0.0f));
+    }
+    
+    @Benchmark
+    public Matrix44 translateRotateRotateInto() {
+        return translation.multInto(rotationX, dest).multInto(rotationY, dest);
+    }
+    
+    @Benchmark
+    public float[] translateRotateRotateFull() {
+        // same chain as above, without taking the types of the matrices into account
+        float[] result = dest.raw();
+        Matrix44.mult(translation.raw(), 0, rotationX.raw(), 0, result, 0);
+        Matrix44.mult(result, 0, rotationY.raw(), 0, result, 0);
+        return result;
+    }
+    
+    @Benchmark
+    public float[] multVector() {
+        return a.mult(vec4);
+    }
+    
+    @Benchmark
+    public float[] transformVectors(Vertices vertices) {
+        b.transformVectors(vertices.data, 0, vertices.count);
+        return vertices.data;
+    }
+    
+    @Benchmark
+    public float[] transformVectorsScalar(Vertices vertices) {
+        b.transformVectorsScalar(vertices.data, 0, vertices.count);
+        return vertices.data;
+    }
+    
+    @Benchmark
+    public float[] multVectorLoop(Vertices vertices) {
+        float[] data = vertices.data;
+        float[] vec4 = new float[4];
+        for (int i = 0; i < vertices.count; i++) {
+            System.arraycopy(data, 4 * i, vec4, 0, 4);
+            System.arraycopy(b.mult(vec4), 0, data, 4 * i, 4);
+        }
+        return data;
+    }
+    
+}
@@ -0,0 +1,72 @@
+package glcore.tutorial05;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how pushing and popping the matrix stack scales with the depth of
+ * the hierarchy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatrixStackBenchmark {
+
+    @Param({ "1", "8", "32", "128" })
+    private int depth;
+    
+    private MatrixStack stack;
+    private Matrix44 projection;
+    private Matrix44 modelView;
+    
+    @Setup
+    public void setup() {
+        stack = new MatrixStack(depth + 2);
+        projection = Matrix44.frustum(-2.0f, 2.0f, -2.0f, 2.0f, 1.0f, 10.0f);
+        modelView = Matrix44.rotate(30.0f, 0.0f, 1.0f, 0.0f);
+    }
+    
+    @Benchmark
+    public Matrix44 pushPop() {
+        stack.pushProjection(projection);
+        for (int i = 0; i < depth; i++) {
+            stack.pushModelView(modelView);
+        }
+        Matrix44 mvp = stack.getModelViewProjectionMatrix();
+        for (int i = 0; i < depth; i++) {
+            stack.popModelView();
+        }
+        stack.popProjection();
+        return mvp;
+    }
+    
+    @Benchmark
+    public Matrix44 pushPopReadingEveryLevel() {
+        Matrix44 mvp = null;
+        stack.pushProjection(projection);
+        for (int i = 0; i < depth; i++) {
+            stack.pushModelView(modelView);
+            mvp = stack.getModelViewProjectionMatrix();
+        }
+        for (int i = 0; i < depth; i++) {
+            stack.popModelView();
+        }
+        stack.popProjection();
+        return mvp;
+    }
+    
+}
@@ -0,0 +1,156 @@
+package glcore.tutorial05;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the import of a grid of about a million triangles, with normals, as
+ * an OBJ file, a binary PLY file and an ASCII PLY file, on all the cores and on
+ * a single thread. The files are written once in the temporary directory and
+ * stay in the page cache, so the parsing is measured rather than the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MeshImporterBenchmark {
+
+    // 708 x 708 vertices make 1000818 triangles
+    private static final int SIZE = 708;
+    
+    @Param({ "obj", "ply", "ply-ascii" })
+    private String format;
+    
+    private File file;
+    private ForkJoinPool sequential;
+    
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("mesh", format.startsWith("ply") ? ".ply" : ".obj");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            if (format.equals("obj")) {
+                writeObj(out);
+            } else {
+                writePly(out, format.equals("ply"));
+            }
+        } finally {
+            out.close();
+        }
+        sequential = new ForkJoinPool(1);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        sequential.shutdown();
+        file.delete();
+    }
+    
+    @Benchmark
+    public MeshImporter importParallel() throws IOException {
+        return MeshImporter.read(file, ForkJoinPool.commonPool());
+    }
+    
+    @Benchmark
+    public MeshImporter importSequential() throws IOException {
+        return MeshImporter.read(file, sequential);
+    }
+    
+    private static float height(int x, int y) {
+        return (float) (Math.sin(x * 0.05) * Math.cos(y * 0.05));
+    }
+    
+    private static void writeObj(OutputStream out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                line.setLength(0);
+                line.append("v ").append(x * 0.01f).append(' ').append(height(x, y)).append(' ').append(y * 0.01f).append('\n');
+                line.append("vn 0 1 ").append(height(y, x) * 0.1f).append('\n');
+                out.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        for (int y = 0; y < SIZE - 1; y++) {
+            for (int x = 0; x < SIZE - 1; x++) {
+                int v = y * SIZE + x + 1;
+                line.setLength(0);
+                line.append("f ").append(v).append("//").append(v)
+                    .append(' ').append(v + SIZE).append("//").append(v + SIZE)
+                    .append(' ').append(v + 1).append("//").append(v + 1).append('\n');
+                line.append("f ").append(v + 1).append("//").append(v + 1)
+                    .append(' ').append(v + SIZE).append("//").append(v + SIZE)
+                    .append(' ').append(v + SIZE + 1).append("//").append(v + SIZE + 1).append('\n');
+                out.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+    
+    private static void writePly(OutputStream out, boolean binary) throws IOException {
+        int triangleCount = 2 * (SIZE - 1) * (SIZE - 1);
+        String header = "ply\nformat " + (binary ? "binary_big_endian" : "ascii") + " 1.0\n"
+                + "element vertex " + SIZE * SIZE + "\n"
+                + "property float x\nproperty float y\nproperty float z\n"
+                + "property float nx\nproperty float ny\nproperty float nz\n"
+                + "element face " + triangleCount + "\n"
+                + "property list uchar int vertex_indices\nend_header\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        DataOutputStream data = new DataOutputStream(out);
+        StringBuilder line = new StringBuilder();
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                float[] vertex = { x * 0.01f, height(x, y), y * 0.01f, 0.0f, 1.0f, height(y, x) * 0.1f };
+                line.setLength(0);
+                for (float value : vertex) {
+                    if (binary) {
+                        data.writeFloat(value);
+                    } else {
+                        line.append(value).append(' ');
+                    }
+                }
+                if (!binary) {
+                    out.write(line.append('\n').toString().getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+        }
+        for (int y = 0; y < SIZE - 1; y++) {
+            for (int x = 0; x < SIZE - 1; x++) {
+                int v = y * SIZE + x;
+                int[][] triangles = { { v, v + SIZE, v + 1 }, { v + 1, v + SIZE, v + SIZE + 1 } };
+                for (int[] triangle : triangles) {
+                    if (binary) {
+                        data.writeByte(3);
+                        data.writeInt(triangle[0]);
+                        data.writeInt(triangle[1]);
+                        data.writeInt(triangle[2]);
+                    } else {
+                        String face = "3 " + triangle[0] + " " + triangle[1] + " " + triangle[2] + "\n";
+                        out.write(face.getBytes(StandardCharsets.US_ASCII));
+                    }
+                }
+            }
+        }
+        data.flush();
+    }
+}
@@ -0,0 +1,64 @@
+package glcore.tutorial05;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the reordering of a grid of shuffled triangles for the vertex cache,
+ * with and without the sorting of the clusters for overdraw, and for the vertex
+ * fetch. The resulting ACMR is printed by MeshOptimizer.main.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeshOptimizerBenchmark {
+
+    @Param({ "64", "512" })
+    private int size;
+    
+    private FloatBuffer positions;
+    private int[] indices;
+    private int vertexCount;
+    
+    @Setup
+    public void setup() {
+        positions = MeshOptimizer.gridPositions(size);
+        indices = MeshOptimizer.shuffledGridIndices(size, 0);
+        vertexCount = positions.remaining() / 3;
+    }
+    
+    @Benchmark
+    public int[] optimizeVertexCache() {
+        return MeshOptimizer.optimizeVertexCache(indices, vertexCount, MeshOptimizer.DEFAULT_CACHE_SIZE, null);
+    }
+    
+    @Benchmark
+    public int[] optimizeVertexCacheAndOverdraw() {
+        return MeshOptimizer.optimizeVertexCache(indices, vertexCount, MeshOptimizer.DEFAULT_CACHE_SIZE, positions);
+    }
+    
+    @Benchmark
+    public int[] optimizeVertexFetch() {
+        return MeshOptimizer.optimizeVertexFetch(indices.clone(), vertexCount);
+    }
+    
+    @Benchmark
+    public float acmr() {
+        return MeshOptimizer.acmr(indices, MeshOptimizer.DEFAULT_CACHE_SIZE);
+    }
+}
@@ -0,0 +1,66 @@
+package glcore.tutorial05;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the composition of two animated rotations done with matrices, as
+ * Tutorial05 used to, with the composition done with quaternions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuaternionBenchmark {
+
+    private final Matrix44 matrixX = new Matrix44();
+    private final Matrix44 matrixY = new Matrix44();
+    private final Matrix44 result = new Matrix44();
+    private final Quaternion quaternionX = new Quaternion();
+    private final Quaternion quaternionY = new Quaternion();
+    private float angle;
+    
+    @Benchmark
+    public Matrix44 matrixRotations() {
+        float angle = nextAngle();
+        matrixX.setRotate(angle, 1.0f, 0.0f, 0.0f);
+        matrixY.setRotate(2 * angle, 0.0f, 1.0f, 0.0f);
+        return matrixX.multInto(matrixY, result);
+    }
+    
+    @Benchmark
+    public Matrix44 quaternionRotations() {
+        float angle = nextAngle();
+        quaternionX.setRotate(angle, 1.0f, 0.0f, 0.0f);
+        quaternionY.setRotate(2 * angle, 0.0f, 1.0f, 0.0f);
+        return quaternionX.multInto(quaternionY, quaternionX).toMatrix(result);
+    }
+    
+    @Benchmark
+    public float mathSin() {
+        return (float) Math.sin(Math.toRadians(nextAngle()));
+    }
+    
+    @Benchmark
+    public float fastSin() {
+        return FastTrig.sin(nextAngle());
+    }
+    
+    // keeps the angles within one turn like an animation would
+    private float nextAngle() {
+        angle = angle < 360.0f ? angle + 1.0f : 0.0f;
+        return angle;
+    }
+    
+}
@@ -0,0 +1,86 @@
+package glcore.tutorial05;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the propagation of the world matrices in a scene graph of 111111
+ * nodes (5 levels of 10 children), when every node or only a few nodes moved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SceneNodeBenchmark {
+
+    @Param({ "111111", "100" })
+    private int dirtyCount;
+    
+    private SceneNode root;
+    private List<SceneNode> nodes;
+    private Random random;
+    private ForkJoinPool pool;
+    
+    @Setup
+    public void setup() {
+        random = new Random(0);
+        nodes = new ArrayList<SceneNode>();
+        root = new SceneNode();
+        build(root, 5);
+        pool = ForkJoinPool.commonPool();
+    }
+    
+    private void build(SceneNode node, int depth) {
+        nodes.add(node);
+        if (depth > 0) {
+            for (int i = 0; i < 10; i++) {
+                SceneNode child = new SceneNode();
+                child.setLocal(Matrix44.translate(random.nextFloat(), random.nextFloat(), random.nextFloat()));
+                node.addChild(child);
+                build(child, depth - 1);
+            }
+        }
+    }
+    
+    private void move() {
+        if (dirtyCount >= nodes.size()) {
+            root.markDirty();
+        } else {
+            for (int i = 0; i < dirtyCount; i++) {
+                nodes.get(random.nextInt(nodes.size())).markDirty();
+            }
+        }
+    }
+    
+    @Benchmark
+    public SceneNode sequential() {
+        move();
+        root.update();
+        return root;
+    }
+    
+    @Benchmark
+    public SceneNode parallel() {
+        move();
+        root.update(pool);
+        return root;
+    }
+    
+}
@@ -0,0 +1,38 @@
+package glcore.tutorial05;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the loading of the shader sources from the classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilsBenchmark {
+
+    private final Tutorial05 tutorial = new Tutorial05();
+    
+    @Benchmark
+    public String loadVertexShader() {
+        return Utils.loadTextResource("shader.vert", tutorial);
+    }
+    
+    @Benchmark
+    public String loadFragmentShader() {
+        return Utils.loadTextResource("shader.frag", tutorial);
+    }
+    
+}
@@ -0,0 +1,59 @@
+package glcore.tutorial05;
+
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that the per frame transforms of {@link Tutorial05#display}, from
+ * pushing the matrices to culling the cube against the view frustum, do not
+ * allocate, by comparing the bytes allocated by the thread before and after
+ * running them many times, once compiled.
+ */
+public class AllocationCheck {
+
+    // the frames run in short batches while warming up, so that the compiler
+    // compiles the batch method itself rather than replacing its loop on stack
+    private static final int WARMUP_BATCHES = 1000;
+    private static final int WARMUP_BATCH_FRAMES = 1000;
+    private static final int FRAMES = 1000000;
+    
+    public static void main(String[] args) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocated memory not supported, check skipped");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        Tutorial05 tutorial = new Tutorial05();
+        Bounds bounds = Bounds.of(FloatBuffer.wrap(Tutorial05.cubeVertices));
+        long thread = Thread.currentThread().getId();
+        int visible = 0;
+        for (int i = 0; i < WARMUP_BATCHES; i++) {
+            visible += frames(tutorial, bounds, WARMUP_BATCH_FRAMES);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        visible += frames(tutorial, bounds, FRAMES);
+        long after = threads.getThreadAllocatedBytes(thread);
+        if (after != before) {
+            throw new AssertionError((after - before) + " bytes allocated in " + FRAMES + " frames");
+        }
+        System.out.println("No allocation in " + FRAMES + " frames, cube visible in " + visible);
+    }
+    
+    private static int frames(Tutorial05 tutorial, Bounds bounds, int count) {
+        int visible = 0;
+        for (int i = 0; i < count; i++) {
+            tutorial.pushTransforms(i);
+            tutorial.stack.getModelViewProjectionMatrix().raw();
+            tutorial.stack.getNormalMatrix();
+            if (tutorial.isVisible(bounds)) {
+                visible++;
+            }
+            tutorial.popTransforms();
+        }
+        return visible;
+    }
+
+}
@@ -0,0 +1,111 @@
+package glcore.tutorial05;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The bounds of a geometry in object coordinates, as an axis aligned box and
+ * as a sphere enclosing it.
+ */
+public class Bounds {
+
+    private final float[] min;
+    private final float[] max;
+    private final float[] center;
+    private final float radius;
+    
+    public Bounds(float[] min, float[] max, float[] center, float radius) {
+        this.min = min;
+        this.max = max;
+        this.center = center;
+        this.radius = radius;
+    }
+    
+    /**
+     * Computes the bounds of the 3D points stored between the position and the
+     * limit of the buffer. The sphere is centered on the box and is the
+     * smallest sphere with that center containing all the points.
+     */
+    public static Bounds of(FloatBuffer points) {
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        int start = points.position();
+        int end = start + points.remaining() / 3 * 3;
+        for (int i = start; i < end; i += 3) {
+            for (int j = 0; j < 3; j++) {
+                float value = points.get(i + j);
+                min[j] = Math.min(min[j], value);
+                max[j] = Math.max(max[j], value);
+            }
+        }
+        float[] center = new float[3];
+        for (int j = 0; j < 3; j++) {
+            center[j] = (min[j] + max[j]) * 0.5f;
+        }
+        float radius2 = 0.0f;
+        for (int i = start; i < end; i += 3) {
+            float dx = points.get(i) - center[0];
+            float dy = points.get(i + 1) - center[1];
+            float dz = points.get(i + 2) - center[2];
+            radius2 = Math.max(radius2, dx * dx + dy * dy + dz * dz);
+        }
+        return new Bounds(min, max, center, (float) Math.sqrt(radius2));
+    }
+    
+    public float[] getMin() {
+        return min;
+    }
+    
+    public float[] getMax() {
+        return max;
+    }
+    
+    public float[] getCenter() {
+        return center;
+    }
+    
+    public float getRadius() {
+        return radius;
+    }
+    
+    /**
+     * Transforms the bounding sphere by the given affine matrix and stores it at
+     * index in the x, y, z and radius arrays, in the layout used by
+     * {@link Frustum#cull(float[], float[], float[], float[], int, int[])}. The
+     * radius is scaled by the largest scaling factor of the matrix.
+     */
+    public void transformSphere(Matrix44 matrix, float[] x, float[] y, float[] z, float[] radii, int index) {
+        float[] m = matrix.raw();
+        x[index] = m[0] * center[0] + m[4] * center[1] + m[8] * center[2] + m[12];
+        y[index] = m[1] * center[0] + m[5] * center[1] + m[9] * center[2] + m[13];
+        z[index] = m[2] * center[0] + m[6] * center[1] + m[10] * center[2] + m[14];
+        float sx = m[0] * m[0] + m[1] * m[1] + m[2] * m[2];
+        float sy = m[4] * m[4] + m[5] * m[5] + m[6] * m[6];
+        float sz = m[8] * m[8] + m[9] * m[9] + m[10] * m[10];
+        radii[index] = radius * (float) Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+    }
+    
+    /**
+     * Transforms the bounding box by the given affine matrix and stores the axis
+     * aligned box enclosing the result at index in boxes, as min x, min y, min z,
+     * max x, max y, max z, the layout used by {@link Bvh#build}.
+     */
+    public void transformBox(Matrix44 matrix, float[] boxes, int index) {
+        float[] m = matrix.raw();
+        int b = 6 * index;
+        for (int i = 0; i < 3; i++) {
+            // Arvo's method: each element of the matrix contributes to the
+            // min and max of the new box with the old min or max
+            float lo = m[12+i];
+            float hi = m[12+i];
+            for (int j = 0; j < 3; j++) {
+                float a = m[4*j+i] * min[j];
+                float c = m[4*j+i] * max[j];
+                lo += Math.min(a, c);
+                hi += Math.max(a, c);
+            }
+            boxes[b+i] = lo;
+            boxes[b+i+3] = hi;
+        }
+    }
+    
+}
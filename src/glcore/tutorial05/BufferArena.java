@@ -0,0 +1,326 @@
+package glcore.tutorial05;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Places many small blocks of vertex or index data in a few large buffer
+ * objects, the pages, rather than in a buffer object each. The free space of
+ * each page is kept as a list of blocks sorted by offset, adjacent free blocks
+ * being merged, and an allocation takes the smallest block it fits in. Blocks
+ * larger than a page get a page of their own. Freed space is reused by the next
+ * allocations; {@link #defragment(GL4)} packs the live blocks into as few pages
+ * as possible when the free space is too scattered.
+ */
+public class BufferArena {
+
+    public static final int DEFAULT_PAGE_SIZE = 4 * 1024 * 1024;
+    
+    /**
+     * A block of a page. Defragmentation moves it to another page or offset,
+     * which increments its move count.
+     */
+    public static class Allocation {
+        private final BufferArena arena;
+        private Page page;
+        private int offset;
+        private final int size;
+        private int moveCount;
+        // index in the allocations of the page, for a constant time removal
+        private int slot;
+    
+        private Allocation(BufferArena arena, int size) {
+            this.arena = arena;
+            this.size = size;
+        }
+        
+        public BufferArena getArena() {
+            return arena;
+        }
+    
+        public int getBufferName() {
+            return page.bufferName;
+        }
+    
+        /**
+         * Returns the offset of the block in its buffer, in bytes.
+         */
+        public int getOffset() {
+            return offset;
+        }
+    
+        public int getSize() {
+            return size;
+        }
+    
+        public int getMoveCount() {
+            return moveCount;
+        }
+    
+        public boolean isFreed() {
+            return page == null;
+        }
+    }
+    
+    private static class Page {
+        int bufferName;
+        int size;
+        // offset to size of the free blocks
+        final TreeMap<Integer, Integer> freeBlocks = new TreeMap<Integer, Integer>();
+        final List<Allocation> allocations = new ArrayList<Allocation>();
+    }
+    
+    private final int pageSize;
+    private final int alignment;
+    private final List<Page> pages = new ArrayList<Page>();
+    private long usedBytes;
+    
+    public BufferArena() {
+        this(DEFAULT_PAGE_SIZE, 16);
+    }
+    
+    /**
+     * Creates an arena of pages of the given size in bytes, the blocks starting
+     * at multiples of alignment, a power of 2.
+     */
+    public BufferArena(int pageSize, int alignment) {
+        if (Integer.bitCount(alignment) != 1) {
+            throw new IllegalArgumentException("Alignment must be a power of 2: " + alignment);
+        }
+        this.pageSize = pageSize;
+        this.alignment = alignment;
+    }
+    
+    /**
+     * Returns a block of at least size bytes, creating a page when no free block
+     * is large enough.
+     */
+    public Allocation allocate(GL4 gl4, int size) {
+        int alignedSize = align(Math.max(size, 1));
+        Page bestPage = null;
+        Map.Entry<Integer, Integer> best = null;
+        for (Page page : pages) {
+            for (Map.Entry<Integer, Integer> block : page.freeBlocks.entrySet()) {
+                if (block.getValue() >= alignedSize && (best == null || block.getValue() < best.getValue())) {
+                    best = block;
+                    bestPage = page;
+                    if (block.getValue() == alignedSize) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (best == null) {
+            bestPage = createPage(gl4, Math.max(pageSize, alignedSize));
+            best = bestPage.freeBlocks.firstEntry();
+        }
+        int offset = best.getKey();
+        int remaining = best.getValue() - alignedSize;
+        bestPage.freeBlocks.remove(offset);
+        if (remaining > 0) {
+            bestPage.freeBlocks.put(offset + alignedSize, remaining);
+        }
+        Allocation allocation = new Allocation(this, alignedSize);
+        place(allocation, bestPage, offset);
+        usedBytes += alignedSize;
+        return allocation;
+    }
+    
+    /**
+     * Copies the data between the position and the limit of the buffer to the
+     * start of the block.
+     */
+    public void upload(GL4 gl4, Allocation allocation, Buffer data, int byteCount) {
+        if (byteCount > allocation.size) {
+            throw new IllegalArgumentException("Data larger than the block: " + byteCount);
+        }
+        gl4.glBindBuffer(GL4.GL_COPY_WRITE_BUFFER, allocation.getBufferName());
+        gl4.glBufferSubData(GL4.GL_COPY_WRITE_BUFFER, allocation.offset, byteCount, data);
+        gl4.glBindBuffer(GL4.GL_COPY_WRITE_BUFFER, 0);
+    }
+    
+    /**
+     * Returns the block to the free space of its page, merged with the adjacent
+     * free blocks.
+     */
+    public void free(Allocation allocation) {
+        Page page = allocation.page;
+        if (page == null) {
+            throw new IllegalStateException("Block already freed");
+        }
+        Allocation last = page.allocations.remove(page.allocations.size() - 1);
+        if (last != allocation) {
+            page.allocations.set(allocation.slot, last);
+            last.slot = allocation.slot;
+        }
+        allocation.page = null;
+        usedBytes -= allocation.size;
+        int offset = allocation.offset;
+        int size = allocation.size;
+        Map.Entry<Integer, Integer> previous = page.freeBlocks.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            offset = previous.getKey();
+            size += previous.getValue();
+        }
+        Integer next = page.freeBlocks.remove(allocation.offset + allocation.size);
+        if (next != null) {
+            size += next;
+        }
+        page.freeBlocks.put(offset, size);
+    }
+    
+    /**
+     * Moves the live blocks, in their current order, to new pages filled one
+     * after the other and deletes the old pages. Returns the number of pages
+     * released. The geometries placed in the arena record their vertex arrays
+     * again on their next render.
+     */
+    public int defragment(GL4 gl4) {
+        List<Allocation> live = new ArrayList<Allocation>();
+        for (Page page : pages) {
+            List<Allocation> allocations = new ArrayList<Allocation>(page.allocations);
+            Collections.sort(allocations, new Comparator<Allocation>() {
+                public int compare(Allocation a1, Allocation a2) {
+                    return a1.offset < a2.offset ? -1 : a1.offset > a2.offset ? 1 : 0;
+                }
+            });
+            live.addAll(allocations);
+        }
+        List<Page> oldPages = new ArrayList<Page>(pages);
+        pages.clear();
+        Page target = null;
+        int targetOffset = 0;
+        for (Allocation allocation : live) {
+            if (target == null || targetOffset + allocation.size > target.size) {
+                closePage(target, targetOffset);
+                target = createPage(gl4, Math.max(pageSize, allocation.size));
+                target.freeBlocks.clear();
+                targetOffset = 0;
+            }
+            gl4.glBindBuffer(GL4.GL_COPY_READ_BUFFER, allocation.getBufferName());
+            gl4.glBindBuffer(GL4.GL_COPY_WRITE_BUFFER, target.bufferName);
+            gl4.glCopyBufferSubData(GL4.GL_COPY_READ_BUFFER, GL4.GL_COPY_WRITE_BUFFER,
+                    allocation.offset, targetOffset, allocation.size);
+            place(allocation, target, targetOffset);
+            allocation.moveCount++;
+            targetOffset += allocation.size;
+        }
+        closePage(target, targetOffset);
+        gl4.glBindBuffer(GL4.GL_COPY_READ_BUFFER, 0);
+        gl4.glBindBuffer(GL4.GL_COPY_WRITE_BUFFER, 0);
+        for (Page page : oldPages) {
+            gl4.glDeleteBuffers(1, new int[] { page.bufferName }, 0);
+        }
+        return oldPages.size() - pages.size();
+    }
+    
+    public void dispose(GL4 gl4) {
+        for (Page page : pages) {
+            for (Allocation allocation : page.allocations) {
+                allocation.page = null;
+            }
+            gl4.glDeleteBuffers(1, new int[] { page.bufferName }, 0);
+        }
+        pages.clear();
+        usedBytes = 0;
+    }
+    
+    public int getPageCount() {
+        return pages.size();
+    }
+    
+    public int getAllocationCount() {
+        int count = 0;
+        for (Page page : pages) {
+            count += page.allocations.size();
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the total size of the pages in bytes.
+     */
+    public long getCapacity() {
+        long capacity = 0;
+        for (Page page : pages) {
+            capacity += page.size;
+        }
+        return capacity;
+    }
+    
+    /**
+     * Returns the size of the live blocks in bytes, alignment included.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    public int getLargestFreeBlock() {
+        int largest = 0;
+        for (Page page : pages) {
+            for (int size : page.freeBlocks.values()) {
+                largest = Math.max(largest, size);
+            }
+        }
+        return largest;
+    }
+    
+    /**
+     * Returns the ratio of the used bytes to the capacity.
+     */
+    public float getOccupancy() {
+        long capacity = getCapacity();
+        return capacity == 0 ? 0.0f : (float) usedBytes / capacity;
+    }
+    
+    /**
+     * Returns 0 when the free space is a single block, and tends to 1 as it is
+     * scattered in many small blocks.
+     */
+    public float getFragmentation() {
+        long free = getCapacity() - usedBytes;
+        return free == 0 ? 0.0f : 1.0f - (float) getLargestFreeBlock() / free;
+    }
+    
+    private int align(int size) {
+        return (size + alignment - 1) & -alignment;
+    }
+    
+    private void place(Allocation allocation, Page page, int offset) {
+        allocation.page = page;
+        allocation.offset = offset;
+        allocation.slot = page.allocations.size();
+        page.allocations.add(allocation);
+    }
+    
+    private Page createPage(GL4 gl4, int size) {
+        Page page = new Page();
+        page.size = size;
+        int[] names = new int[1];
+        gl4.glGenBuffers(1, names, 0);
+        page.bufferName = names[0];
+        gl4.glBindBuffer(GL4.GL_COPY_WRITE_BUFFER, page.bufferName);
+        gl4.glBufferData(GL4.GL_COPY_WRITE_BUFFER, size, null, GL4.GL_STATIC_DRAW);
+        gl4.glBindBuffer(GL4.GL_COPY_WRITE_BUFFER, 0);
+        page.freeBlocks.put(0, size);
+        pages.add(page);
+        return page;
+    }
+    
+    /**
+     * Marks the space of the page after the filled part as free.
+     */
+    private void closePage(Page page, int filled) {
+        if (page != null && filled < page.size) {
+            page.freeBlocks.put(filled, page.size - filled);
+        }
+    }
+
+}
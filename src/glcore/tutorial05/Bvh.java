@@ -0,0 +1,467 @@
+package glcore.tutorial05;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounding volume hierarchy over primitives given by their axis aligned
+ * boxes, e.g. the triangles of a geometry kept with
+ * {@link GeometryBuilder#setKeepPositions(boolean)}, or the world boxes of
+ * the instances of a scene. The tree is built with the surface area
+ * heuristic evaluated over 16 bins per node, the large subtrees being built
+ * in parallel, and answers ray casts and frustum queries by only descending
+ * into the nodes the ray or the frustum touches.
+ * <p>
+ * The nodes are stored in flat arrays. A leaf references a range of the
+ * permuted primitive indices, an inner node the first of its two
+ * consecutive children.
+ */
+public class Bvh {
+
+    /**
+     * Intersects a ray with a primitive stored in the hierarchy. It must not
+     * cast rays into that hierarchy, see {@link Bvh#raycast}.
+     */
+    public interface Intersector {
+        /**
+         * Returns the distance along the ray, in multiples of the direction, of
+         * the intersection with the primitive, or Float.POSITIVE_INFINITY if none.
+         */
+        float intersect(int primitive, float ox, float oy, float oz, float dx, float dy, float dz);
+    }
+    
+    /**
+     * The closest intersection found by a ray cast. Reusable from one cast to the next.
+     */
+    public static class Hit {
+        public int primitive = -1;
+        public float distance = Float.POSITIVE_INFINITY;
+    }
+    
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 4;
+    // ranges of primitives larger than this are split in parallel
+    private static final int PARALLEL_THRESHOLD = 4096;
+    // cost of visiting a node relative to intersecting a primitive
+    private static final float TRAVERSAL_COST = 1.0f;
+    
+    private final float[] nodeBounds;
+    private final int[] nodeFirst;
+    private final int[] nodeCount;
+    private final int[] primitives;
+    private int nodesUsed;
+    // the traversal stack of each thread, in a holder so that it can be grown,
+    // per hierarchy so that an intersector can cast rays into another one
+    private final ThreadLocal<int[][]> stacks = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[][] { new int[64] };
+        }
+    };
+    
+    private Bvh(int primitiveCount) {
+        int maxNodes = Math.max(1, 2 * primitiveCount - 1);
+        nodeBounds = new float[6 * maxNodes];
+        nodeFirst = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        primitives = new int[primitiveCount];
+    }
+    
+    /**
+     * Builds a hierarchy over count primitives whose boxes are stored in boxes as
+     * min x, min y, min z, max x, max y, max z.
+     */
+    public static Bvh build(float[] boxes, int count, ForkJoinPool pool) {
+        Bvh bvh = new Bvh(count);
+        float[] centroids = new float[3 * count];
+        for (int i = 0; i < count; i++) {
+            bvh.primitives[i] = i;
+            for (int j = 0; j < 3; j++) {
+                centroids[3*i+j] = (boxes[6*i+j] + boxes[6*i+j+3]) * 0.5f;
+            }
+        }
+        AtomicInteger nodes = new AtomicInteger(1);
+        pool.invoke(bvh.new BuildTask(boxes, centroids, nodes, 0, 0, count));
+        bvh.nodesUsed = nodes.get();
+        return bvh;
+    }
+    
+    /**
+     * Builds a hierarchy over the triangles formed by each 3 consecutive points
+     * stored between the position and the limit of positions.
+     */
+    public static Bvh buildTriangles(FloatBuffer positions, ForkJoinPool pool) {
+        return buildTriangles(positions, null, pool);
+    }
+    
+    /**
+     * Builds a hierarchy over the triangles formed by each 3 consecutive indices
+     * of the points stored from the position of positions, or by each 3 consecutive
+     * points when indices is null.
+     */
+    public static Bvh buildTriangles(FloatBuffer positions, IntBuffer indices, ForkJoinPool pool) {
+        int start = positions.position();
+        int count = indices == null ? positions.remaining() / 9 : indices.remaining() / 3;
+        float[] boxes = new float[6 * count];
+        for (int t = 0; t < count; t++) {
+            int pa = corner(start, indices, 3*t);
+            int pb = corner(start, indices, 3*t+1);
+            int pc = corner(start, indices, 3*t+2);
+            for (int j = 0; j < 3; j++) {
+                float a = positions.get(pa + j);
+                float b = positions.get(pb + j);
+                float c = positions.get(pc + j);
+                boxes[6*t+j] = Math.min(a, Math.min(b, c));
+                boxes[6*t+j+3] = Math.max(a, Math.max(b, c));
+            }
+        }
+        return build(boxes, count, pool);
+    }
+    
+    /**
+     * Returns the offset in the positions of the i-th triangle corner.
+     */
+    private static int corner(int start, IntBuffer indices, int i) {
+        return start + 3 * (indices == null ? i : indices.get(indices.position() + i));
+    }
+    
+    /**
+     * Returns an intersector for the triangles a hierarchy was built over with
+     * {@link #buildTriangles(FloatBuffer, ForkJoinPool)}, using the Moller-Trumbore
+     * test. Both faces of the triangles are hit.
+     */
+    public static Intersector triangleIntersector(FloatBuffer positions) {
+        return triangleIntersector(positions, null);
+    }
+    
+    /**
+     * Returns an intersector for the triangles a hierarchy was built over with
+     * {@link #buildTriangles(FloatBuffer, IntBuffer, ForkJoinPool)}.
+     */
+    public static Intersector triangleIntersector(final FloatBuffer positions, final IntBuffer indices) {
+        final int start = positions.position();
+        return new Intersector() {
+            public float intersect(int primitive, float ox, float oy, float oz, float dx, float dy, float dz) {
+                int pa = corner(start, indices, 3*primitive);
+                int pb = corner(start, indices, 3*primitive+1);
+                int pc = corner(start, indices, 3*primitive+2);
+                float ax = positions.get(pa), ay = positions.get(pa+1), az = positions.get(pa+2);
+                float e1x = positions.get(pb) - ax, e1y = positions.get(pb+1) - ay, e1z = positions.get(pb+2) - az;
+                float e2x = positions.get(pc) - ax, e2y = positions.get(pc+1) - ay, e2z = positions.get(pc+2) - az;
+                float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+                float det = e1x * px + e1y * py + e1z * pz;
+                if (det == 0.0f) {
+                    return Float.POSITIVE_INFINITY;
+                }
+                float inv = 1.0f / det;
+                float tx = ox - ax, ty = oy - ay, tz = oz - az;
+                float u = (tx * px + ty * py + tz * pz) * inv;
+                if (u < 0.0f || u > 1.0f) {
+                    return Float.POSITIVE_INFINITY;
+                }
+                float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+                float v = (dx * qx + dy * qy + dz * qz) * inv;
+                if (v < 0.0f || u + v > 1.0f) {
+                    return Float.POSITIVE_INFINITY;
+                }
+                float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+                return t >= 0.0f ? t : Float.POSITIVE_INFINITY;
+            }
+        };
+    }
+    
+    public int getNodeCount() {
+        return nodesUsed;
+    }
+    
+    /**
+     * Finds the closest primitive hit by the ray starting at o with direction d,
+     * and stores it in hit, which must be reset before the first cast. Returns
+     * whether a primitive closer than the one already in hit was found. Casts
+     * and queries reuse a traversal stack per thread and per hierarchy, so they
+     * do not allocate. The intersector can cast rays into another hierarchy,
+     * but must not cast into this one again while the cast runs, which would
+     * overwrite the stack in use.
+     */
+    public boolean raycast(float ox, float oy, float oz, float dx, float dy, float dz, Intersector intersector, Hit hit) {
+        if (primitives.length == 0) {
+            return false;
+        }
+        float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz;
+        boolean found = false;
+        int[][] holder = stacks.get();
+        int[] stack = holder[0];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (distanceToBox(node, ox, oy, oz, ix, iy, iz) >= hit.distance) {
+                continue;
+            }
+            int count = nodeCount[node];
+            int first = nodeFirst[node];
+            if (count > 0) {
+                for (int i = first; i < first + count; i++) {
+                    float distance = intersector.intersect(primitives[i], ox, oy, oz, dx, dy, dz);
+                    if (distance < hit.distance) {
+                        hit.distance = distance;
+                        hit.primitive = primitives[i];
+                        found = true;
+                    }
+                }
+            } else {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                    holder[0] = stack;
+                }
+                // the closest child is visited first, to shorten the ray early
+                float left = distanceToBox(first, ox, oy, oz, ix, iy, iz);
+                float right = distanceToBox(first + 1, ox, oy, oz, ix, iy, iz);
+                if (left < right) {
+                    stack[top++] = first + 1;
+                    stack[top++] = first;
+                } else {
+                    stack[top++] = first;
+                    stack[top++] = first + 1;
+                }
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Writes the indices of the primitives whose boxes intersect the frustum at the
+     * beginning of result, and returns their number.
+     */
+    public int query(Frustum frustum, int[] result) {
+        if (primitives.length == 0) {
+            return 0;
+        }
+        int found = 0;
+        int[][] holder = stacks.get();
+        int[] stack = holder[0];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int b = 6 * node;
+            if (!frustum.intersectsBox(nodeBounds[b], nodeBounds[b+1], nodeBounds[b+2],
+                                       nodeBounds[b+3], nodeBounds[b+4], nodeBounds[b+5])) {
+                continue;
+            }
+            int count = nodeCount[node];
+            int first = nodeFirst[node];
+            if (count > 0) {
+                System.arraycopy(primitives, first, result, found, count);
+                found += count;
+            } else {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                    holder[0] = stack;
+                }
+                stack[top++] = first;
+                stack[top++] = first + 1;
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Returns the distance along the ray to the box of the node (slab test), or
+     * Float.POSITIVE_INFINITY if the ray misses it. A ray parallel to a slab,
+     * whose inverse direction is infinite, only has its origin tested against
+     * it, the product of the infinity and the distance to a bound being NaN
+     * when the origin lies on the bound.
+     */
+    private float distanceToBox(int node, float ox, float oy, float oz, float ix, float iy, float iz) {
+        int b = 6 * node;
+        float near = 0.0f, far = Float.POSITIVE_INFINITY;
+        if (Float.isInfinite(ix)) {
+            if (ox < nodeBounds[b] || ox > nodeBounds[b+3]) {
+                return Float.POSITIVE_INFINITY;
+            }
+        } else {
+            float t1 = (nodeBounds[b] - ox) * ix, t2 = (nodeBounds[b+3] - ox) * ix;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (Float.isInfinite(iy)) {
+            if (oy < nodeBounds[b+1] || oy > nodeBounds[b+4]) {
+                return Float.POSITIVE_INFINITY;
+            }
+        } else {
+            float t1 = (nodeBounds[b+1] - oy) * iy, t2 = (nodeBounds[b+4] - oy) * iy;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (Float.isInfinite(iz)) {
+            if (oz < nodeBounds[b+2] || oz > nodeBounds[b+5]) {
+                return Float.POSITIVE_INFINITY;
+            }
+        } else {
+            float t1 = (nodeBounds[b+2] - oz) * iz, t2 = (nodeBounds[b+5] - oz) * iz;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        return far >= near ? near : Float.POSITIVE_INFINITY;
+    }
+    
+    private static float area(float[] box, int offset) {
+        float x = box[offset+3] - box[offset];
+        float y = box[offset+4] - box[offset+1];
+        float z = box[offset+5] - box[offset+2];
+        return x < 0.0f ? 0.0f : x * y + y * z + z * x;
+    }
+    
+    private static void empty(float[] box, int offset) {
+        box[offset] = box[offset+1] = box[offset+2] = Float.MAX_VALUE;
+        box[offset+3] = box[offset+4] = box[offset+5] = -Float.MAX_VALUE;
+    }
+    
+    private static void grow(float[] box, int offset, float[] by, int byOffset) {
+        for (int j = 0; j < 3; j++) {
+            box[offset+j] = Math.min(box[offset+j], by[byOffset+j]);
+            box[offset+j+3] = Math.max(box[offset+j+3], by[byOffset+j+3]);
+        }
+    }
+    
+    /**
+     * Builds the subtree of a node over a range of the primitives. The nodes are
+     * allocated in pairs from a shared counter, so that subtrees can be built
+     * concurrently in disjoint ranges.
+     */
+    private class BuildTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final float[] boxes;
+        private final float[] centroids;
+        private final AtomicInteger nodes;
+        private final int node;
+        private final int start;
+        private final int end;
+        
+        BuildTask(float[] boxes, float[] centroids, AtomicInteger nodes, int node, int start, int end) {
+            this.boxes = boxes;
+            this.centroids = centroids;
+            this.nodes = nodes;
+            this.node = node;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected void compute() {
+            int b = 6 * node;
+            empty(nodeBounds, b);
+            float[] centroidBounds = new float[6];
+            empty(centroidBounds, 0);
+            for (int i = start; i < end; i++) {
+                int p = primitives[i];
+                grow(nodeBounds, b, boxes, 6 * p);
+                for (int j = 0; j < 3; j++) {
+                    centroidBounds[j] = Math.min(centroidBounds[j], centroids[3*p+j]);
+                    centroidBounds[j+3] = Math.max(centroidBounds[j+3], centroids[3*p+j]);
+                }
+            }
+            int count = end - start;
+            int axis = 0;
+            for (int j = 1; j < 3; j++) {
+                if (centroidBounds[j+3] - centroidBounds[j] > centroidBounds[axis+3] - centroidBounds[axis]) {
+                    axis = j;
+                }
+            }
+            float min = centroidBounds[axis];
+            float extent = centroidBounds[axis+3] - min;
+            if (count <= MAX_LEAF_SIZE || extent <= 0.0f) {
+                makeLeaf();
+                return;
+            }
+            
+            // bins the primitives along the axis and sweeps the possible splits
+            float scale = BINS / extent;
+            int[] binCounts = new int[BINS];
+            float[] binBounds = new float[6 * BINS];
+            for (int k = 0; k < BINS; k++) {
+                empty(binBounds, 6 * k);
+            }
+            for (int i = start; i < end; i++) {
+                int p = primitives[i];
+                int k = bin(centroids[3*p+axis], min, scale);
+                binCounts[k]++;
+                grow(binBounds, 6 * k, boxes, 6 * p);
+            }
+            float[] leftAreas = new float[BINS - 1];
+            int[] leftCounts = new int[BINS - 1];
+            float[] sweep = new float[6];
+            empty(sweep, 0);
+            int sweepCount = 0;
+            for (int k = 0; k < BINS - 1; k++) {
+                grow(sweep, 0, binBounds, 6 * k);
+                sweepCount += binCounts[k];
+                leftAreas[k] = area(sweep, 0);
+                leftCounts[k] = sweepCount;
+            }
+            empty(sweep, 0);
+            sweepCount = 0;
+            float bestCost = Float.POSITIVE_INFINITY;
+            int bestSplit = -1;
+            for (int k = BINS - 1; k > 0; k--) {
+                grow(sweep, 0, binBounds, 6 * k);
+                sweepCount += binCounts[k];
+                if (sweepCount == 0 || leftCounts[k-1] == 0) {
+                    continue;
+                }
+                float cost = leftAreas[k-1] * leftCounts[k-1] + area(sweep, 0) * sweepCount;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestSplit = k;
+                }
+            }
+            float leafCost = area(nodeBounds, b) * count;
+            bestCost = TRAVERSAL_COST * area(nodeBounds, b) + bestCost;
+            if (bestSplit < 0 || (bestCost >= leafCost && count <= 4 * MAX_LEAF_SIZE)) {
+                makeLeaf();
+                return;
+            }
+            
+            // partitions the range in place, primitives in the bins below the split first
+            int i = start;
+            int j = end - 1;
+            while (i <= j) {
+                if (bin(centroids[3*primitives[i]+axis], min, scale) < bestSplit) {
+                    i++;
+                } else {
+                    int swap = primitives[i];
+                    primitives[i] = primitives[j];
+                    primitives[j--] = swap;
+                }
+            }
+            int left = nodes.getAndAdd(2);
+            nodeFirst[node] = left;
+            nodeCount[node] = 0;
+            BuildTask leftTask = new BuildTask(boxes, centroids, nodes, left, start, i);
+            BuildTask rightTask = new BuildTask(boxes, centroids, nodes, left + 1, i, end);
+            if (count > PARALLEL_THRESHOLD) {
+                invokeAll(leftTask, rightTask);
+            } else {
+                leftTask.compute();
+                rightTask.compute();
+            }
+        }
+        
+        private void makeLeaf() {
+            nodeFirst[node] = start;
+            nodeCount[node] = end - start;
+        }
+        
+        private int bin(float centroid, float min, float scale) {
+            return Math.min(BINS - 1, (int) ((centroid - min) * scale));
+        }
+    }
+    
+}
@@ -0,0 +1,204 @@
+package glcore.tutorial05;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Geometry whose vertices are written by the CPU every frame. The vertices are
+ * interleaved in a buffer object split in 3 regions used in turn, a fence
+ * placed after the draws of a region telling when it can be written again, so
+ * that the CPU writes one frame while the GPU still reads the previous ones.
+ * A region is mapped unsynchronized, which neither reallocates the buffer nor
+ * waits for the GPU, the fences already guaranteeing it is no longer in use.
+ * Each frame calls {@link #begin(GL4)}, writes the vertices, then calls
+ * {@link #end(GL4, int)} before rendering.
+ */
+public class DynamicGeometry {
+
+    public static final int REGIONS = 3;
+    
+    private static class AttributeFormat {
+        int index;
+        int components;
+        int dataType;
+        boolean normalized;
+    }
+    
+    private final int primitiveType;
+    private final int maxVertexCount;
+    private final List<AttributeFormat> formats = new ArrayList<AttributeFormat>();
+    private int stride;
+    
+    // created on the first begin
+    private int bufferName;
+    private int vertexArrayName;
+    
+    private final long[] fences = new long[REGIONS];
+    private int region = -1;
+    private int vertexCount;
+    private boolean mapped;
+    private int stallCount;
+    
+    public DynamicGeometry(int primitiveType, int maxVertexCount) {
+        this.primitiveType = primitiveType;
+        this.maxVertexCount = maxVertexCount;
+    }
+    
+    /**
+     * Adds an attribute, laid out after the previous ones in a vertex and aligned
+     * on 4 bytes. Attributes can only be added before the first frame.
+     */
+    public DynamicGeometry addAttribute(int index, int components, int dataType, boolean normalized) {
+        if (bufferName != 0) {
+            throw new IllegalStateException("Attributes must be added before the first frame");
+        }
+        AttributeFormat format = new AttributeFormat();
+        format.index = index;
+        format.components = components;
+        format.dataType = dataType;
+        format.normalized = normalized;
+        formats.add(format);
+        stride += (VertexPacking.vertexSize(dataType, components) + 3) & ~3;
+        return this;
+    }
+    
+    /**
+     * Returns the size of a vertex in bytes.
+     */
+    public int getStride() {
+        return stride;
+    }
+    
+    public int getMaxVertexCount() {
+        return maxVertexCount;
+    }
+    
+    /**
+     * Returns how many times {@link #begin(GL4)} had to wait for the GPU to
+     * release a region, which means the GPU is more than 2 frames behind.
+     */
+    public int getStallCount() {
+        return stallCount;
+    }
+    
+    /**
+     * Fences the draws of the previous region, waits until the GPU no longer
+     * reads the next one and maps it. Returns the mapped memory, in which up to
+     * the maximum number of vertices can be written from position 0.
+     */
+    public ByteBuffer begin(GL4 gl4) {
+        if (mapped) {
+            throw new IllegalStateException("Frame already begun");
+        }
+        if (bufferName == 0) {
+            create(gl4);
+        } else {
+            fences[region] = gl4.glFenceSync(GL4.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+        region = (region + 1) % REGIONS;
+        waitFence(gl4, region);
+        int regionSize = stride * maxVertexCount;
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, bufferName);
+        ByteBuffer vertices = gl4.glMapBufferRange(GL4.GL_ARRAY_BUFFER, (long) region * regionSize, regionSize,
+                GL4.GL_MAP_WRITE_BIT | GL4.GL_MAP_UNSYNCHRONIZED_BIT | GL4.GL_MAP_INVALIDATE_RANGE_BIT);
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, 0);
+        if (vertices == null) {
+            throw new IllegalStateException("Failed to map the dynamic geometry");
+        }
+        mapped = true;
+        return vertices.order(ByteOrder.nativeOrder());
+    }
+    
+    /**
+     * Unmaps the region after vertexCount vertices were written.
+     */
+    public void end(GL4 gl4, int vertexCount) {
+        if (!mapped) {
+            throw new IllegalStateException("Frame not begun");
+        }
+        if (vertexCount > maxVertexCount) {
+            throw new IllegalArgumentException("Too many vertices: " + vertexCount);
+        }
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, bufferName);
+        gl4.glUnmapBuffer(GL4.GL_ARRAY_BUFFER);
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, 0);
+        mapped = false;
+        this.vertexCount = vertexCount;
+    }
+    
+    /**
+     * Draws the vertices written in the current frame.
+     */
+    public void render(GL4 gl4) {
+        if (region < 0 || mapped) {
+            throw new IllegalStateException("No vertices to render");
+        }
+        gl4.glBindVertexArray(vertexArrayName);
+        // the regions follow each other, so the one of the frame starts at a vertex
+        gl4.glDrawArrays(primitiveType, region * maxVertexCount, vertexCount);
+        gl4.glBindVertexArray(0);
+    }
+    
+    public void dispose(GL4 gl4) {
+        for (int i = 0; i < REGIONS; i++) {
+            if (fences[i] != 0) {
+                gl4.glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+        }
+        if (vertexArrayName != 0) {
+            gl4.glDeleteVertexArrays(1, new int[] { vertexArrayName }, 0);
+            vertexArrayName = 0;
+        }
+        if (bufferName != 0) {
+            gl4.glDeleteBuffers(1, new int[] { bufferName }, 0);
+            bufferName = 0;
+        }
+        region = -1;
+        mapped = false;
+    }
+    
+    private void waitFence(GL4 gl4, int i) {
+        if (fences[i] == 0) {
+            return;
+        }
+        int status = gl4.glClientWaitSync(fences[i], 0, 0);
+        if (status == GL4.GL_TIMEOUT_EXPIRED) {
+            stallCount++;
+            // flushes so that the fence is eventually signaled, and waits 1ms at a time
+            do {
+                status = gl4.glClientWaitSync(fences[i], GL4.GL_SYNC_FLUSH_COMMANDS_BIT, 1000000);
+            } while (status == GL4.GL_TIMEOUT_EXPIRED);
+        }
+        gl4.glDeleteSync(fences[i]);
+        fences[i] = 0;
+        if (status == GL4.GL_WAIT_FAILED) {
+            throw new IllegalStateException("Failed to wait for the dynamic geometry fence");
+        }
+    }
+    
+    private void create(GL4 gl4) {
+        int[] names = new int[1];
+        gl4.glGenBuffers(1, names, 0);
+        bufferName = names[0];
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, bufferName);
+        // allocated once for all the regions, never reallocated
+        gl4.glBufferData(GL4.GL_ARRAY_BUFFER, (long) REGIONS * stride * maxVertexCount, null, GL4.GL_STREAM_DRAW);
+        gl4.glGenVertexArrays(1, names, 0);
+        vertexArrayName = names[0];
+        gl4.glBindVertexArray(vertexArrayName);
+        int offset = 0;
+        for (AttributeFormat format : formats) {
+            gl4.glEnableVertexAttribArray(format.index);
+            gl4.glVertexAttribPointer(format.index, format.components, format.dataType, format.normalized, stride, offset);
+            offset += (VertexPacking.vertexSize(format.dataType, format.components) + 3) & ~3;
+        }
+        gl4.glBindVertexArray(0);
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, 0);
+    }
+
+}
@@ -0,0 +1,42 @@
+package glcore.tutorial05;
+
+/**
+ * Table-based sine and cosine of angles in degrees, linearly interpolated
+ * between 4096 samples per turn. The absolute error is below 1e-6, i.e. of
+ * the order of the float precision, for angles within one turn; for larger
+ * angles the error is dominated by the precision of the float angle itself.
+ */
+public class FastTrig {
+
+    private static final int SIZE = 4096;
+    private static final int MASK = SIZE - 1;
+    private static final float SCALE = SIZE / 360.0f;
+    
+    // one extra sample so that the interpolation never has to wrap around
+    private static final float[] SINES = new float[SIZE + 1];
+    
+    static {
+        for (int i = 0; i <= SIZE; i++) {
+            SINES[i] = (float) Math.sin(2.0 * Math.PI * i / SIZE);
+        }
+    }
+    
+    private FastTrig() {
+    }
+    
+    public static float sin(float degrees) {
+        float t = degrees * SCALE;
+        int i = (int) t;
+        if (t < i) {
+            i--;
+        }
+        float fraction = t - i;
+        i &= MASK;
+        return SINES[i] + (SINES[i+1] - SINES[i]) * fraction;
+    }
+    
+    public static float cos(float degrees) {
+        return sin(degrees + 90.0f);
+    }
+    
+}
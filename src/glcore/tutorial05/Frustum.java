@@ -0,0 +1,111 @@
+package glcore.tutorial05;
+
+/**
+ * The six clipping planes of a projection volume, used to skip the objects
+ * that cannot be visible. The planes are extracted from a projection matrix
+ * (e.g. built by {@link Matrix44#frustum} or {@link Matrix44#ortho}) combined
+ * with a view or model view matrix, and are expressed in the coordinates
+ * the combined matrix transforms from.
+ */
+public class Frustum {
+
+    // a, b, c, d for the left, right, bottom, top, near and far planes, so that
+    // a * x + b * y + c * z + d >= 0 inside, with (a, b, c) normalized
+    private final float[] planes = new float[24];
+    
+    /**
+     * Extracts the planes from the given matrix, as described by Gribb and Hartmann
+     * in "Fast Extraction of Viewing Frustum Planes from the World-View-Projection Matrix".
+     */
+    public Frustum set(Matrix44 matrix) {
+        float[] m = matrix.raw();
+        for (int i = 0; i < 3; i++) {
+            // rows 0, 1 and 2 are added to and subtracted from row 3
+            for (int sign = 0; sign < 2; sign++) {
+                float s = sign == 0 ? 1.0f : -1.0f;
+                int p = 4 * (2 * i + sign);
+                float a = m[3] + s * m[i];
+                float b = m[7] + s * m[i+4];
+                float c = m[11] + s * m[i+8];
+                float d = m[15] + s * m[i+12];
+                float length = (float) Math.sqrt(a * a + b * b + c * c);
+                planes[p+0] = a / length;
+                planes[p+1] = b / length;
+                planes[p+2] = c / length;
+                planes[p+3] = d / length;
+            }
+        }
+        return this;
+    }
+    
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (int p = 0; p < 24; p += 4) {
+            if (planes[p] * x + planes[p+1] * y + planes[p+2] * z + planes[p+3] < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean intersectsBox(float[] min, float[] max) {
+        return intersectsBox(min[0], min[1], min[2], max[0], max[1], max[2]);
+    }
+    
+    public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        for (int p = 0; p < 24; p += 4) {
+            // the corner of the box the furthest along the normal of the plane
+            float x = planes[p] >= 0.0f ? maxX : minX;
+            float y = planes[p+1] >= 0.0f ? maxY : minY;
+            float z = planes[p+2] >= 0.0f ? maxZ : minZ;
+            if (planes[p] * x + planes[p+1] * y + planes[p+2] * z + planes[p+3] < 0.0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Tests the bounding box, then the bounding sphere, of a geometry drawn with
+     * the matrix the planes were extracted from.
+     */
+    public boolean intersects(Bounds bounds) {
+        float[] center = bounds.getCenter();
+        return intersectsBox(bounds.getMin(), bounds.getMax())
+            && intersectsSphere(center[0], center[1], center[2], bounds.getRadius());
+    }
+    
+    /**
+     * Tests count spheres stored as separate coordinate and radius arrays, and
+     * writes the indices of the ones intersecting the frustum at the beginning
+     * of visible, in increasing order. Returns the number of visible spheres.
+     * visible must hold count entries however few spheres are visible, as the
+     * loop writes an index for every sphere to avoid branching.
+     */
+    public int cull(float[] x, float[] y, float[] z, float[] radii, int count, int[] visible) {
+        if (visible.length < count) {
+            throw new IllegalArgumentException("visible must hold count entries");
+        }
+        float a0 = planes[0], b0 = planes[1], c0 = planes[2], d0 = planes[3];
+        float a1 = planes[4], b1 = planes[5], c1 = planes[6], d1 = planes[7];
+        float a2 = planes[8], b2 = planes[9], c2 = planes[10], d2 = planes[11];
+        float a3 = planes[12], b3 = planes[13], c3 = planes[14], d3 = planes[15];
+        float a4 = planes[16], b4 = planes[17], c4 = planes[18], d4 = planes[19];
+        float a5 = planes[20], b5 = planes[21], c5 = planes[22], d5 = planes[23];
+        int visibleCount = 0;
+        for (int i = 0; i < count; i++) {
+            float px = x[i], py = y[i], pz = z[i], r = -radii[i];
+            // non short-circuit tests, the loop has no branch
+            boolean inside = (a0 * px + b0 * py + c0 * pz + d0 >= r)
+                           & (a1 * px + b1 * py + c1 * pz + d1 >= r)
+                           & (a2 * px + b2 * py + c2 * pz + d2 >= r)
+                           & (a3 * px + b3 * py + c3 * pz + d3 >= r)
+                           & (a4 * px + b4 * py + c4 * pz + d4 >= r)
+                           & (a5 * px + b5 * py + c5 * pz + d5 >= r);
+            // the index is always written but only kept if the sphere is visible
+            visible[visibleCount] = i;
+            visibleCount += inside ? 1 : 0;
+        }
+        return visibleCount;
+    }
+    
+}
@@ -1,5 +1,9 @@
 package glcore.tutorial05;
 
+import glcore.tutorial05.BufferArena.Allocation;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.List;
 
 import javax.media.opengl.GL4;
@@ -8,38 +12,275 @@ public class Geometry {
 
     public static class Attribute {
         public Attribute(int index, int bufferName, int components, int dataType) {
+            this(index, bufferName, components, dataType, 0, 0);
+        }
+        public Attribute(int index, int bufferName, int components, int dataType, int stride, int offset) {
+            this(index, bufferName, components, dataType, false, stride, offset);
+        }
+        public Attribute(int index, int bufferName, int components, int dataType, boolean normalized, int stride, int offset) {
+            this(index, bufferName, components, dataType, normalized, stride, offset, 0);
+        }
+        public Attribute(int index, int bufferName, int components, int dataType, boolean normalized, int stride, int offset, int divisor) {
             this.index = index;
             this.bufferName = bufferName;
             this.components = components;
             this.dataType = dataType;
+            this.normalized = normalized;
+            this.stride = stride;
+            this.offset = offset;
+            this.divisor = divisor;
         }
         public final int index;
         public final int bufferName;
         public final int components;
         public final int dataType;
+        // whether integer data is mapped to [-1, 1] or [0, 1]
+        public final boolean normalized;
+        // in bytes, 0 when the attribute has a buffer of its own
+        public final int stride;
+        // in bytes, from the start of the arena block when bufferName is 0
+        public final int offset;
+        // 0 for per-vertex data, n when the attribute advances once every n instances
+        public final int divisor;
     }
     
     private final int vertexCount;
+    private final int indexCount;
+    // GL_UNSIGNED_SHORT or GL_UNSIGNED_INT, 0 when the geometry is not indexed
+    private final int indexType;
     private final int primitiveType;
     private final List<Attribute> attributes;
+    // captures the state of the attributes, so that a draw only needs to bind it
+    private int vertexArrayName;
+    private final Bounds bounds;
+    private final FloatBuffer positions;
+    private final IntBuffer indices;
+    // the blocks holding the vertices and indices when placed in an arena, null otherwise
+    private final Allocation vertexAllocation;
+    private final Allocation indexAllocation;
+    // the move count of the blocks when the vertex array was recorded
+    private int recordedMoves;
+    // the per-instance attributes, null when the geometry is not instanced
+    private InstanceBuffer instanceBuffer;
+    // the ACMR of the triangles before and after the builder optimized them, NaN when it did not
+    private float acmrBefore = Float.NaN;
+    private float acmrAfter = Float.NaN;
     
-    public Geometry(List<Attribute> attributes, int vertexCount, int primitiveType) {
+    public Geometry(List<Attribute> attributes, int vertexArrayName, int primitiveType, int vertexCount,
+                    int indexCount, int indexType, Bounds bounds, FloatBuffer positions, IntBuffer indices) {
+        this(attributes, vertexArrayName, primitiveType, vertexCount, indexCount, indexType, bounds, positions, indices, null, null);
+    }
+    
+    public Geometry(List<Attribute> attributes, int vertexArrayName, int primitiveType, int vertexCount,
+                    int indexCount, int indexType, Bounds bounds, FloatBuffer positions, IntBuffer indices,
+                    Allocation vertexAllocation, Allocation indexAllocation) {
     	this.attributes = attributes;
-        this.vertexCount = vertexCount;
+    	this.vertexArrayName = vertexArrayName;
         this.primitiveType = primitiveType;
+        this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+        this.indexType = indexType;
+        this.bounds = bounds;
+        this.positions = positions;
+        this.indices = indices;
+        this.vertexAllocation = vertexAllocation;
+        this.indexAllocation = indexAllocation;
+        this.recordedMoves = moveCount();
+    }
+    
+    /**
+     * Returns the bounds of the geometry in object coordinates, or null if the
+     * builder was not told which attribute holds the positions.
+     */
+    public Bounds getBounds() {
+        return bounds;
+    }
+    
+    /**
+     * Returns the CPU-side copy of the vertex positions, 3 floats per vertex, or
+     * null if the builder was not told to keep them.
+     */
+    public FloatBuffer getPositions() {
+        return positions;
+    }
+    
+    /**
+     * Returns the CPU-side copy of the indices when the positions are kept and
+     * the geometry is indexed, null otherwise.
+     */
+    public IntBuffer getIndices() {
+        return indices;
+    }
+    
+    public int getVertexCount() {
+        return vertexCount;
+    }
+    
+    public int getIndexCount() {
+        return indexCount;
+    }
+    
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+    
+    public int getVertexArrayName() {
+        return vertexArrayName;
+    }
+    
+    public InstanceBuffer getInstanceBuffer() {
+        return instanceBuffer;
+    }
+    
+    void setInstanceBuffer(InstanceBuffer instanceBuffer) {
+        this.instanceBuffer = instanceBuffer;
+    }
+    
+    /**
+     * Returns the average cache miss ratio of the triangles as they were given
+     * to the builder, or NaN if they were not optimized, see {@link MeshOptimizer}.
+     */
+    public float getAcmrBefore() {
+        return acmrBefore;
+    }
+    
+    /**
+     * Returns the average cache miss ratio of the triangles as optimized by the
+     * builder, or NaN if they were not optimized.
+     */
+    public float getAcmrAfter() {
+        return acmrAfter;
+    }
+    
+    void setAcmr(float acmrBefore, float acmrAfter) {
+        this.acmrBefore = acmrBefore;
+        this.acmrAfter = acmrAfter;
     }
     
     public void render(GL4 gl4) {
-    	for (Attribute attribute : attributes) {
-    		gl4.glEnableVertexAttribArray(attribute.index);
-    		gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, attribute.bufferName);
-    		gl4.glVertexAttribPointer(attribute.index, attribute.components, attribute.dataType, false, 0, 0);
-    	}
-        gl4.glDrawArrays(primitiveType, 0, vertexCount);
-    	for (Attribute attribute : attributes) {
-    		gl4.glDisableVertexAttribArray(attribute.index);
-    	}
+        bind(gl4);
+        if (indexType == 0) {
+            gl4.glDrawArrays(primitiveType, 0, vertexCount);
+        } else {
+            gl4.glDrawElements(primitiveType, indexCount, indexType, indexAllocation == null ? 0 : indexAllocation.getOffset());
+        }
+        gl4.glBindVertexArray(0);
+    }
+    
+    /**
+     * Draws as many copies of the geometry as there are instances in its instance
+     * buffer, in a single draw call.
+     */
+    public void renderInstanced(GL4 gl4) {
+        if (instanceBuffer == null) {
+            throw new IllegalStateException("Geometry built without an instance buffer");
+        }
+        renderInstanced(gl4, instanceBuffer.getInstanceCount());
+    }
+    
+    /**
+     * Draws instanceCount copies of the geometry in a single draw call, the
+     * attributes with a divisor advancing from one instance to the next.
+     */
+    public void renderInstanced(GL4 gl4, int instanceCount) {
+        if (indexAllocation != null && indexAllocation.getOffset() != 0) {
+            throw new UnsupportedOperationException("Instanced draws of indices placed in an arena are not supported");
+        }
+        bind(gl4);
+        if (indexType == 0) {
+            gl4.glDrawArraysInstanced(primitiveType, 0, vertexCount, instanceCount);
+        } else {
+            // the binding only takes a Buffer, null being the start of the bound index buffer
+            gl4.glDrawElementsInstanced(primitiveType, indexCount, indexType, null, instanceCount);
+        }
+        gl4.glBindVertexArray(0);
+    }
+    
+    private void bind(GL4 gl4) {
+        if (vertexAllocation != null && moveCount() != recordedMoves) {
+            // the arena was defragmented since the vertex array was recorded
+            gl4.glDeleteVertexArrays(1, new int[] { vertexArrayName }, 0);
+            vertexArrayName = makeVertexArray(gl4, attributes, vertexAllocation, indexAllocation);
+            recordedMoves = moveCount();
+        }
+        gl4.glBindVertexArray(vertexArrayName);
+    }
+    
+    /**
+     * Deletes the vertex array, and frees the blocks of the geometry in its arena
+     * or deletes its buffers. The instance buffer, which can be shared, is left
+     * to its owner.
+     */
+    public void dispose(GL4 gl4) {
+        if (vertexAllocation != null) {
+            vertexAllocation.getArena().free(vertexAllocation);
+            if (indexAllocation != null) {
+                indexAllocation.getArena().free(indexAllocation);
+            }
+        } else {
+            if (indexType != 0) {
+                // the index buffer is part of the vertex array state
+                int[] name = new int[1];
+                gl4.glBindVertexArray(vertexArrayName);
+                gl4.glGetIntegerv(GL4.GL_ELEMENT_ARRAY_BUFFER_BINDING, name, 0);
+                gl4.glBindVertexArray(0);
+                gl4.glDeleteBuffers(1, name, 0);
+            }
+            int deleted = 0;
+            for (Attribute attribute : attributes) {
+                // interleaved attributes share the same buffer
+                if (attribute.divisor == 0 && attribute.bufferName != deleted) {
+                    gl4.glDeleteBuffers(1, new int[] { attribute.bufferName }, 0);
+                    deleted = attribute.bufferName;
+                }
+            }
+        }
+        gl4.glDeleteVertexArrays(1, new int[] { vertexArrayName }, 0);
+        vertexArrayName = 0;
+    }
+    
+    private int moveCount() {
+        if (vertexAllocation == null) {
+            return 0;
+        }
+        return vertexAllocation.getMoveCount() + (indexAllocation == null ? 0 : indexAllocation.getMoveCount());
+    }
+    
+    /**
+     * Records the buffers and formats of the attributes, and the index buffer if
+     * any, in a new vertex array object. The attributes without a buffer of
+     * their own are read from the vertex block, at offsets relative to its start.
+     */
+    static int makeVertexArray(GL4 gl4, List<Attribute> attributes, Allocation vertexAllocation, Allocation indexAllocation) {
+        return makeVertexArray(gl4, attributes, vertexAllocation.getBufferName(), vertexAllocation.getOffset(),
+                indexAllocation == null ? 0 : indexAllocation.getBufferName());
+    }
+    
+    static int makeVertexArray(GL4 gl4, List<Attribute> attributes, int vertexBuffer, int vertexOffset, int indexBuffer) {
+        int[] vertexArrays = new int[1];
+        gl4.glGenVertexArrays(1, vertexArrays, 0);
+        gl4.glBindVertexArray(vertexArrays[0]);
+        int boundBuffer = 0;
+        for (Attribute attribute : attributes) {
+            int buffer = attribute.bufferName != 0 ? attribute.bufferName : vertexBuffer;
+            int offset = attribute.bufferName != 0 ? attribute.offset : vertexOffset + attribute.offset;
+            gl4.glEnableVertexAttribArray(attribute.index);
+            // interleaved attributes share the same buffer
+            if (buffer != boundBuffer) {
+                gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, buffer);
+                boundBuffer = buffer;
+            }
+            gl4.glVertexAttribPointer(attribute.index, attribute.components, attribute.dataType, attribute.normalized, attribute.stride, offset);
+            if (attribute.divisor != 0) {
+                gl4.glVertexAttribDivisor(attribute.index, attribute.divisor);
+            }
+        }
+        if (indexBuffer != 0) {
+            gl4.glBindBuffer(GL4.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        }
+        gl4.glBindVertexArray(0);
         gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, 0);
+        return vertexArrays[0];
     }
     
 }
@@ -1,10 +1,14 @@
 package glcore.tutorial05;
 
+import glcore.tutorial05.BufferArena.Allocation;
 import glcore.tutorial05.Geometry.Attribute;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,32 +16,116 @@ import javax.media.opengl.GL4;
 
 public class GeometryBuilder {
 
-	private static class AttributeData {
+	static class AttributeData {
 		public Buffer buffer;
 		public int attributeIndex;
 		public int dataType;
 		public int components;
+		public boolean normalized;
 	}
 	
     private int vertexCount;
     private int primitiveType;
     private List<AttributeData> attributesData;
+    private int positionAttributeIndex;
+    private boolean keepPositions;
+    private boolean interleaved;
+    private int[] indices;
+    private Buffer indicesBuffer;
+    private boolean deduplicate;
+    private boolean optimize;
+    private BufferArena arena;
+    private InstanceBuffer instanceBuffer;
+    // the ACMR of the triangles before and after optimizing them, NaN until then
+    private float acmrBefore;
+    private float acmrAfter;
+    // the interleaved vertices, once packed
+    private ByteBuffer vertexData;
+    private int[] vertexOffsets;
+    private int stride;
+    // the direct buffers holding the data until it is uploaded
+    private final StagingPool stagingPool;
+    private final List<ByteBuffer> staged = new ArrayList<ByteBuffer>();
     
+    /**
+     * Creates a builder staging its data in the shared pool. The builder must
+     * be reset once done with, after building or on failure, to return its
+     * staging buffers to the pool.
+     */
     public GeometryBuilder() {
+    	this(StagingPool.SHARED);
+    }
+    
+    /**
+     * Creates a builder staging its data in the pool, to be reset once done with.
+     */
+    public GeometryBuilder(StagingPool stagingPool) {
+    	this.stagingPool = stagingPool;
     	reset();
     }
     
+    /**
+     * Clears the attributes and options, returning the staging buffers of the
+     * attributes to the pool. This is mandatory once done with the builder,
+     * a builder dropped without being reset leaving its buffers to the garbage
+     * collector instead of the pool.
+     */
     public GeometryBuilder reset() {
+    	for (ByteBuffer buffer : staged) {
+    		stagingPool.release(buffer);
+    	}
+    	staged.clear();
     	attributesData = new ArrayList<AttributeData>();
+    	positionAttributeIndex = -1;
+    	keepPositions = false;
+    	interleaved = false;
+    	indices = null;
+    	indicesBuffer = null;
+    	deduplicate = false;
+    	optimize = false;
+    	arena = null;
+    	instanceBuffer = null;
+    	acmrBefore = Float.NaN;
+    	acmrAfter = Float.NaN;
+    	vertexData = null;
+    	vertexOffsets = null;
     	return this;
     }
     
+    /**
+     * Adds an attribute, data being a float[] for GL_FLOAT and a byte[] for
+     * GL_UNSIGNED_BYTE. For GL_HALF_FLOAT, GL_SHORT, GL_BYTE and GL_INT_2_10_10_10_REV
+     * data is a float[] quantized by {@link VertexPacking}, the integer types being
+     * normalized; GL_INT_2_10_10_10_REV packs 3 or 4 floats per vertex in one int.
+     */
     public GeometryBuilder addAtribute(int attributeIndex, int components, int dataType, Object data) {
+    	AttributeData attribute = new AttributeData();
+    	attribute.attributeIndex = attributeIndex;
+    	attribute.components = dataType == GL4.GL_INT_2_10_10_10_REV ? 4 : components;
+    	attribute.dataType = dataType;
+    	attribute.normalized = dataType == GL4.GL_SHORT || dataType == GL4.GL_BYTE || dataType == GL4.GL_INT_2_10_10_10_REV;
+    	attribute.buffer = makeBuffer(dataType, components, data);
+    	attributesData.add(attribute);
+        return this;
+    }
+    
+    /**
+     * Adds an attribute whose data is already in the format of the data type, a
+     * direct FloatBuffer or ByteBuffer for GL_FLOAT and a direct ByteBuffer for the
+     * other types, e.g. a slice of a mapped file. The buffer is uploaded as is,
+     * without being copied, unless the attributes are interleaved.
+     */
+    public GeometryBuilder addAtribute(int attributeIndex, int components, int dataType, boolean normalized, Buffer data) {
     	AttributeData attribute = new AttributeData();
     	attribute.attributeIndex = attributeIndex;
     	attribute.components = components;
     	attribute.dataType = dataType;
-    	attribute.buffer = makeBuffer(dataType, data);
+    	attribute.normalized = normalized;
+    	if (dataType == GL4.GL_FLOAT && data instanceof ByteBuffer) {
+    		attribute.buffer = ((ByteBuffer) data).duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    	} else {
+    		attribute.buffer = data;
+    	}
     	attributesData.add(attribute);
         return this;
     }
@@ -52,49 +140,549 @@ public class GeometryBuilder {
         return this;
     }
     
+    /**
+     * Designates the attribute holding the vertex positions, which must be made
+     * of 3 floats, so that the bounds of the geometry are computed when built.
+     */
+    public GeometryBuilder setPositionAttribute(int attributeIndex) {
+        this.positionAttributeIndex = attributeIndex;
+        return this;
+    }
+    
+    /**
+     * Keeps a CPU-side copy of the positions in the built geometry, e.g. to build
+     * a {@link Bvh} over its triangles. Requires the position attribute to be set.
+     */
+    public GeometryBuilder setKeepPositions(boolean keepPositions) {
+        this.keepPositions = keepPositions;
+        return this;
+    }
+    
+    /**
+     * Selects whether the attributes are stored in a single buffer, the attributes
+     * of each vertex next to each other, or in one buffer per attribute.
+     */
+    public GeometryBuilder setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+        return this;
+    }
+    
+    /**
+     * Sets the indices of the vertices forming the primitives, the geometry then
+     * being drawn with glDrawElements.
+     */
+    public GeometryBuilder setIndices(int[] indices) {
+        this.indices = indices;
+        this.indicesBuffer = null;
+        return this;
+    }
+    
+    /**
+     * Sets the indices as a direct ShortBuffer of unsigned shorts or a direct
+     * IntBuffer, uploaded as is unless the geometry is optimized.
+     */
+    public GeometryBuilder setIndices(Buffer indices) {
+        if (!(indices instanceof ShortBuffer) && !(indices instanceof IntBuffer)) {
+            throw new IllegalArgumentException("Indices must be a ShortBuffer or an IntBuffer");
+        }
+        this.indices = null;
+        this.indicesBuffer = indices;
+        return this;
+    }
+    
+    /**
+     * When no indices are set, selects whether the vertices identical in all
+     * their attributes are merged when built, the geometry then being drawn
+     * with the generated indices.
+     */
+    public GeometryBuilder setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+        return this;
+    }
+    
+    /**
+     * Selects whether the triangles are reordered for the post-transform vertex
+     * cache and the vertices for fetch locality when built, see {@link MeshOptimizer}.
+     * Without indices set, the vertices are deduplicated first.
+     */
+    public GeometryBuilder setOptimize(boolean optimize) {
+        this.optimize = optimize;
+        return this;
+    }
+    
+    /**
+     * Places the interleaved vertices and the indices in blocks of the arena
+     * rather than in buffer objects of their own.
+     */
+    public GeometryBuilder setArena(BufferArena arena) {
+        this.arena = arena;
+        return this;
+    }
+    
+    /**
+     * Records the attributes of the instance buffer in the vertex array of the
+     * geometry, so that it can be drawn with {@link Geometry#renderInstanced(GL4)}.
+     * The instance buffer can be shared by several geometries.
+     */
+    public GeometryBuilder setInstanceBuffer(InstanceBuffer instanceBuffer) {
+        this.instanceBuffer = instanceBuffer;
+        return this;
+    }
+    
+    /**
+     * Uploads the data and returns the geometry. The builder is then reset, its
+     * staging buffers being returned to the pool.
+     */
     public Geometry build(GL4 gl4) {
-        int[] buffers = new int[attributesData.size()];
-        gl4.glGenBuffers(attributesData.size(), buffers, 0);
+        Buffer indexData = pack();
         List<Attribute> attributes = new ArrayList<Attribute>();
+        Allocation vertexAllocation = null;
+        if (arena != null) {
+        	vertexAllocation = arena.allocate(gl4, vertexData.limit());
+        	arena.upload(gl4, vertexAllocation, vertexData, vertexData.limit());
+        	for (int i = 0; i < attributesData.size(); i++) {
+        		AttributeData attribute = attributesData.get(i);
+        		// no buffer name, the offsets are relative to the block
+        		attributes.add(new Attribute(attribute.attributeIndex, 0, attribute.components, attribute.dataType, attribute.normalized, stride, vertexOffsets[i]));
+        	}
+        } else if (interleaved) {
+        	int[] buffers = new int[1];
+        	gl4.glGenBuffers(1, buffers, 0);
+        	gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, buffers[0]);
+        	gl4.glBufferData(GL4.GL_ARRAY_BUFFER, vertexData.limit(), vertexData, GL4.GL_STATIC_DRAW);
+        	for (int i = 0; i < attributesData.size(); i++) {
+        		AttributeData attribute = attributesData.get(i);
+        		attributes.add(new Attribute(attribute.attributeIndex, buffers[0], attribute.components, attribute.dataType, attribute.normalized, stride, vertexOffsets[i]));
+        	}
+        } else {
+        	int[] buffers = new int[attributesData.size()];
+        	gl4.glGenBuffers(attributesData.size(), buffers, 0);
+        	for (int i = 0; i < attributesData.size(); i++) {
+        		AttributeData attribute = attributesData.get(i);
+        		int size = vertexSize(attribute) * vertexCount;
+        		gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, buffers[i]);
+        		gl4.glBufferData(GL4.GL_ARRAY_BUFFER, size, attribute.buffer, GL4.GL_STATIC_DRAW);
+        		attributes.add(new Attribute(attribute.attributeIndex, buffers[i], attribute.components, attribute.dataType, attribute.normalized, 0, 0));
+        	}
+        }
+        Bounds bounds = null;
+        FloatBuffer positions = null;
+        for (AttributeData attribute : attributesData) {
+        	if (attribute.attributeIndex == positionAttributeIndex) {
+        		bounds = Bounds.of((FloatBuffer) attribute.buffer);
+        		if (keepPositions) {
+        			// copied as the staging buffer goes back to the pool
+        			FloatBuffer source = ((FloatBuffer) attribute.buffer).duplicate();
+        			positions = FloatBuffer.allocate(source.remaining()).put(source);
+        			positions.flip();
+        		}
+        	}
+        }
+        int indexBuffer = 0;
+        int indexType = 0;
+        int indexCount = 0;
+        IntBuffer keptIndices = null;
+        Allocation indexAllocation = null;
+        if (indexData != null) {
+            indexType = indexData instanceof ShortBuffer ? GL4.GL_UNSIGNED_SHORT : GL4.GL_UNSIGNED_INT;
+            indexCount = indexData.remaining();
+            if (positions != null) {
+                keptIndices = IntBuffer.wrap(toArray(indexData));
+            }
+        }
+        if (indexData != null && arena != null) {
+            indexAllocation = arena.allocate(gl4, componentSize(indexType) * indexCount);
+            arena.upload(gl4, indexAllocation, indexData, componentSize(indexType) * indexCount);
+        } else if (indexData != null) {
+            int[] buffers = new int[1];
+            gl4.glGenBuffers(1, buffers, 0);
+            indexBuffer = buffers[0];
+            gl4.glBindBuffer(GL4.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+            gl4.glBufferData(GL4.GL_ELEMENT_ARRAY_BUFFER, componentSize(indexType) * indexCount, indexData, GL4.GL_STATIC_DRAW);
+            gl4.glBindBuffer(GL4.GL_ELEMENT_ARRAY_BUFFER, 0);
+        }
+        if (instanceBuffer != null) {
+            attributes.addAll(instanceBuffer.getAttributes(gl4));
+        }
+        Geometry geometry;
+        if (arena != null) {
+            int vertexArray = Geometry.makeVertexArray(gl4, attributes, vertexAllocation, indexAllocation);
+            geometry = new Geometry(attributes, vertexArray, primitiveType, vertexCount, indexCount, indexType, bounds, positions, keptIndices,
+                                    vertexAllocation, indexAllocation);
+        } else {
+            int vertexArray = Geometry.makeVertexArray(gl4, attributes, 0, 0, indexBuffer);
+            geometry = new Geometry(attributes, vertexArray, primitiveType, vertexCount, indexCount, indexType, bounds, positions, keptIndices);
+        }
+        geometry.setInstanceBuffer(instanceBuffer);
+        geometry.setAcmr(acmrBefore, acmrAfter);
+        reset();
+        return geometry;
+    }
+    
+    /**
+     * Merges and reorders the vertices and the indices as requested, and returns
+     * the indices as a ShortBuffer or an IntBuffer, or null when the geometry is
+     * not indexed. The result replaces the indices, so that preparing again, or
+     * building, does not redo the work. Does not need the GL thread.
+     */
+    Buffer prepare() {
+        checkPositionAttribute();
+        int[] indexData = indices;
+        if (indexData == null && indicesBuffer != null) {
+            if (!optimize) {
+                return indicesBuffer;
+            }
+            indexData = toArray(indicesBuffer);
+        }
+        if (indexData == null && (deduplicate || optimize)) {
+            indexData = deduplicate();
+        }
+        if (optimize && primitiveType == GL4.GL_TRIANGLES) {
+            indexData = optimize(indexData);
+        }
+        deduplicate = false;
+        optimize = false;
+        indices = null;
+        indicesBuffer = indexData == null ? null : makeIndexBuffer(indexData);
+        return indicesBuffer;
+    }
+    
+    /**
+     * Checks that the position attribute, if any, is made of 3 floats, before
+     * anything is computed or uploaded.
+     */
+    private void checkPositionAttribute() {
+        for (AttributeData attribute : attributesData) {
+            if (attribute.attributeIndex == positionAttributeIndex
+                    && (attribute.dataType != GL4.GL_FLOAT || attribute.components != 3)) {
+                throw new IllegalArgumentException("Position attribute must be 3 x GL_FLOAT");
+            }
+        }
+    }
+    
+    /**
+     * Prepares the geometry and interleaves the vertices when they go to a single
+     * buffer, leaving only the uploads to the build. Does not need the GL thread
+     * either, so that a loader can do all the CPU work on its workers.
+     */
+    Buffer pack() {
+        Buffer indexData = prepare();
+        if ((interleaved || arena != null) && vertexData == null) {
+            vertexOffsets = new int[attributesData.size()];
+            stride = layout(vertexOffsets);
+            vertexData = interleave(stride, vertexOffsets);
+        }
+        return indexData;
+    }
+    
+    /**
+     * Returns the number of bytes the build uploads, once packed.
+     */
+    long getUploadSize() {
+        long size = 0;
+        if (vertexData != null) {
+            size += vertexData.limit();
+        } else {
+            for (AttributeData attribute : attributesData) {
+                size += (long) vertexSize(attribute) * vertexCount;
+            }
+        }
+        if (indicesBuffer != null) {
+            size += (indicesBuffer instanceof ShortBuffer ? 2L : 4L) * indicesBuffer.remaining();
+        }
+        return size;
+    }
+    
+    private static int[] toArray(Buffer indices) {
+        int[] result = new int[indices.remaining()];
+        if (indices instanceof ShortBuffer) {
+            ShortBuffer shorts = (ShortBuffer) indices;
+            for (int i = 0; i < result.length; i++) {
+                result[i] = shorts.get(shorts.position() + i) & 0xffff;
+            }
+        } else {
+            ((IntBuffer) indices).duplicate().get(result);
+        }
+        return result;
+    }
+    
+    List<AttributeData> getAttributesData() {
+        return attributesData;
+    }
+    
+    int getVertexCount() {
+        return vertexCount;
+    }
+    
+    int getPrimitiveType() {
+        return primitiveType;
+    }
+    
+    int getPositionAttributeIndex() {
+        return positionAttributeIndex;
+    }
+    
+    /**
+     * Returns the ACMR of the triangles before they were optimized, once prepared,
+     * or NaN if they were not, like {@link Geometry#getAcmrBefore()}.
+     */
+    float getAcmrBefore() {
+        return acmrBefore;
+    }
+    
+    float getAcmrAfter() {
+        return acmrAfter;
+    }
+    
+    /**
+     * Returns the indices reordered for the vertex cache, and replaces the attribute
+     * data by the vertices in the order of their first use.
+     */
+    int[] optimize(int[] indexData) {
+        FloatBuffer positions = null;
+        for (AttributeData attribute : attributesData) {
+            if (attribute.attributeIndex == positionAttributeIndex && attribute.dataType == GL4.GL_FLOAT) {
+                positions = (FloatBuffer) attribute.buffer;
+            }
+        }
+        int[] result = MeshOptimizer.optimizeVertexCache(indexData, vertexCount, MeshOptimizer.DEFAULT_CACHE_SIZE, positions);
+        acmrBefore = MeshOptimizer.acmr(indexData, MeshOptimizer.DEFAULT_CACHE_SIZE);
+        acmrAfter = MeshOptimizer.acmr(result, MeshOptimizer.DEFAULT_CACHE_SIZE);
+        int[] order = MeshOptimizer.optimizeVertexFetch(result, vertexCount);
+        for (AttributeData attribute : attributesData) {
+            attribute.buffer = gather(attribute, order, order.length);
+        }
+        vertexCount = order.length;
+        return result;
+    }
+    
+    /**
+     * Merges the vertices having the same values for all their attributes, replacing
+     * the attribute data by the unique vertices, and returns the indices of the
+     * unique vertices in the original order.
+     */
+    int[] deduplicate() {
+        int[] result = new int[vertexCount];
+        // the original vertex each unique vertex comes from
+        int[] sources = new int[vertexCount];
+        int uniqueCount = 0;
+        // open addressing hash table of unique vertex numbers plus one, 0 being empty
+        int mask = Integer.highestOneBit(Math.max(1, 2 * vertexCount - 1)) * 2 - 1;
+        int[] table = new int[mask + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            int slot = hashVertex(v) & mask;
+            while (table[slot] != 0 && !sameVertex(sources[table[slot] - 1], v)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                sources[uniqueCount] = v;
+                table[slot] = ++uniqueCount;
+            }
+            result[v] = table[slot] - 1;
+        }
+        for (AttributeData attribute : attributesData) {
+            attribute.buffer = gather(attribute, sources, uniqueCount);
+        }
+        vertexCount = uniqueCount;
+        return result;
+    }
+    
+    private int hashVertex(int v) {
+        int hash = 1;
+        for (AttributeData attribute : attributesData) {
+            int elements = elementsPerVertex(attribute);
+            for (int c = 0; c < elements; c++) {
+                hash = 31 * hash + componentBits(attribute.buffer, v * elements + c);
+            }
+        }
+        // spreads the high bits, the table index only uses the low ones
+        return hash ^ (hash >>> 16);
+    }
+    
+    private boolean sameVertex(int v1, int v2) {
+        for (AttributeData attribute : attributesData) {
+            int elements = elementsPerVertex(attribute);
+            for (int c = 0; c < elements; c++) {
+                if (componentBits(attribute.buffer, v1 * elements + c)
+                        != componentBits(attribute.buffer, v2 * elements + c)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    private int componentBits(Buffer buffer, int index) {
+        if (buffer instanceof FloatBuffer) {
+            return Float.floatToIntBits(((FloatBuffer) buffer).get(index));
+        } else {
+            return ((ByteBuffer) buffer).get(index);
+        }
+    }
+    
+    /**
+     * Returns a buffer with the values of the given vertices of the attribute.
+     */
+    private Buffer gather(AttributeData attribute, int[] vertices, int count) {
+        int components = elementsPerVertex(attribute);
+        if (attribute.buffer instanceof FloatBuffer) {
+            FloatBuffer source = (FloatBuffer) attribute.buffer;
+            FloatBuffer buffer = stage(4 * components * count).asFloatBuffer();
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < components; c++) {
+                    buffer.put(source.get(vertices[i] * components + c));
+                }
+            }
+            return buffer.flip();
+        } else {
+            ByteBuffer source = (ByteBuffer) attribute.buffer;
+            ByteBuffer buffer = stage(components * count);
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < components; c++) {
+                    buffer.put(source.get(vertices[i] * components + c));
+                }
+            }
+            return buffer.flip();
+        }
+    }
+    
+    /**
+     * Packs the indices as unsigned shorts when they all fit, as unsigned ints otherwise.
+     */
+    private Buffer makeIndexBuffer(int[] data) {
+        int max = 0;
+        for (int index : data) {
+            max = Math.max(max, index);
+        }
+        if (max <= 0xffff) {
+            ShortBuffer buffer = stage(2 * data.length).asShortBuffer();
+            for (int index : data) {
+                buffer.put((short) index);
+            }
+            return buffer.flip();
+        }
+        return stage(4 * data.length)
+                .asIntBuffer()
+                .put(data)
+                .flip();
+    }
+    
+    /**
+     * Computes the offsets of the attributes within an interleaved vertex, each
+     * aligned on 4 bytes, and returns the size of a vertex.
+     */
+    int layout(int[] offsets) {
+        int stride = 0;
         for (int i = 0; i < attributesData.size(); i++) {
-        	AttributeData attribute = attributesData.get(i);
-        	int size = componentSize(attribute.dataType) * attribute.buffer.limit();
-        	gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, buffers[i]);
-        	gl4.glBufferData(GL4.GL_ARRAY_BUFFER, size, attribute.buffer, GL4.GL_STATIC_DRAW);
-        	attributes.add(new Attribute(attribute.attributeIndex, buffers[i], attribute.components, attribute.dataType));
+            AttributeData attribute = attributesData.get(i);
+            offsets[i] = stride;
+            stride += (vertexSize(attribute) + 3) & ~3;
         }
-        return new Geometry(attributes, vertexCount, primitiveType);
+        return stride;
     }
-
+    
+    /**
+     * Packs the attributes of all the vertices in a single buffer, following the
+     * layout computed by {@link #layout(int[])}.
+     */
+    ByteBuffer interleave(int stride, int[] offsets) {
+        ByteBuffer data = stage(stride * vertexCount);
+        for (int i = 0; i < attributesData.size(); i++) {
+            AttributeData attribute = attributesData.get(i);
+            int components = elementsPerVertex(attribute);
+            if (attribute.buffer instanceof FloatBuffer) {
+                FloatBuffer buffer = (FloatBuffer) attribute.buffer;
+                for (int v = 0; v < vertexCount; v++) {
+                    for (int c = 0; c < components; c++) {
+                        data.putFloat(v * stride + offsets[i] + 4 * c, buffer.get(v * components + c));
+                    }
+                }
+            } else {
+                ByteBuffer buffer = (ByteBuffer) attribute.buffer;
+                for (int v = 0; v < vertexCount; v++) {
+                    for (int c = 0; c < components; c++) {
+                        data.put(v * stride + offsets[i] + c, buffer.get(v * components + c));
+                    }
+                }
+            }
+        }
+        return data;
+    }
+    
     private int componentSize(int dataType) {
         switch (dataType) {
         case GL4.GL_FLOAT: return 4;
         case GL4.GL_UNSIGNED_BYTE: return 1;
+        case GL4.GL_UNSIGNED_SHORT: return 2;
+        case GL4.GL_UNSIGNED_INT: return 4;
         default: throw new UnsupportedOperationException("Data type not supported");
         }
     }
     
-    private Buffer makeBuffer(int dataType, Object data) {
+    private int vertexSize(AttributeData attribute) {
+        return VertexPacking.vertexSize(attribute.dataType, attribute.components);
+    }
+    
+    /**
+     * Returns the number of elements of the attribute buffer per vertex, floats
+     * for GL_FLOAT and bytes for the other types.
+     */
+    private int elementsPerVertex(AttributeData attribute) {
+        return attribute.buffer instanceof FloatBuffer ? attribute.components : vertexSize(attribute);
+    }
+    
+    private Buffer makeBuffer(int dataType, int components, Object data) {
         switch (dataType) {
         case GL4.GL_FLOAT: return makeFloatBuffer((float[]) data);
         case GL4.GL_UNSIGNED_BYTE: return makeUbyteBuffer((byte[]) data);
+        case GL4.GL_HALF_FLOAT:
+        case GL4.GL_SHORT:
+        case GL4.GL_BYTE:
+        case GL4.GL_INT_2_10_10_10_REV:
+            float[] values = (float[]) data;
+            ByteBuffer buffer = stage(VertexPacking.vertexSize(dataType, components) * (values.length / components));
+            VertexPacking.pack(dataType, components, values, buffer);
+            return buffer.flip();
         default: throw new UnsupportedOperationException("Data type not supported");
         }
     }
     
-    private Buffer makeFloatBuffer(float[] data) {
-        return ByteBuffer.allocateDirect(4*data.length)
-                .order(ByteOrder.nativeOrder())
+    Buffer makeFloatBuffer(float[] data) {
+        return stage(4*data.length)
                 .asFloatBuffer()
                 .put(data)
                 .flip();
     }
     
     private Buffer makeUbyteBuffer(byte[] data) {
-        return ByteBuffer.allocateDirect(data.length)
+        return stage(data.length)
                 .put(data)
                 .flip();
     }
     
+    /**
+     * Returns a direct buffer in native order from the staging pool, released
+     * when the builder is reset.
+     */
+    private ByteBuffer stage(int size) {
+        ByteBuffer buffer = stagingPool.acquire(size);
+        staged.add(buffer);
+        return buffer;
+    }
+    
+    /**
+     * Returns a buffer obtained from the staging pool before the builder is reset.
+     */
+    void release(ByteBuffer buffer) {
+        for (int i = 0; i < staged.size(); i++) {
+            if (staged.get(i) == buffer) {
+                staged.remove(i);
+                stagingPool.release(buffer);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Buffer not staged by this builder");
+    }
+    
 }
 
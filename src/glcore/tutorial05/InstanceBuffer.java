@@ -0,0 +1,130 @@
+package glcore.tutorial05;
+
+import glcore.tutorial05.Geometry.Attribute;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Per-instance attributes, such as a model matrix and a color, interleaved in
+ * a buffer object and advancing once per instance when a geometry built with
+ * {@link GeometryBuilder#setInstanceBuffer(InstanceBuffer)} is drawn with
+ * {@link Geometry#renderInstanced(GL4)}. A matrix takes 4 consecutive
+ * attribute indices, one per column, and is declared as a mat4 input of the
+ * vertex shader at the first one. The instances are written by the CPU, all
+ * of them at once, with {@link #update(GL4, Buffer, int)}.
+ */
+public class InstanceBuffer {
+
+    private static class AttributeFormat {
+        int index;
+        int components;
+        int dataType;
+        boolean normalized;
+        int offset;
+    }
+    
+    private final List<AttributeFormat> formats = new ArrayList<AttributeFormat>();
+    private int stride;
+    
+    // created when the first geometry is built with the instances
+    private int bufferName;
+    private int capacity;
+    private int instanceCount;
+    
+    /**
+     * Adds an attribute, laid out after the previous ones in an instance and
+     * aligned on 4 bytes. Attributes can only be added before a geometry is
+     * built with the instances.
+     */
+    public InstanceBuffer addAttribute(int index, int components, int dataType, boolean normalized) {
+        if (bufferName != 0) {
+            throw new IllegalStateException("Attributes must be added before the instances are used");
+        }
+        AttributeFormat format = new AttributeFormat();
+        format.index = index;
+        format.components = components;
+        format.dataType = dataType;
+        format.normalized = normalized;
+        format.offset = stride;
+        formats.add(format);
+        stride += (VertexPacking.vertexSize(dataType, components) + 3) & ~3;
+        return this;
+    }
+    
+    /**
+     * Adds a 4x4 float matrix, stored in column-major order like
+     * {@link Matrix44#raw()}, at the attribute indices index to index + 3.
+     */
+    public InstanceBuffer addMatrixAttribute(int index) {
+        for (int column = 0; column < 4; column++) {
+            addAttribute(index + column, 4, GL4.GL_FLOAT, false);
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the size of an instance in bytes.
+     */
+    public int getStride() {
+        return stride;
+    }
+    
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+    
+    /**
+     * Replaces the instances with the instanceCount ones stored from the position
+     * of data. The buffer object grows as needed and is orphaned otherwise, so
+     * that the update does not wait for the draws still reading the previous
+     * instances.
+     */
+    public void update(GL4 gl4, Buffer data, int instanceCount) {
+        create(gl4);
+        int size = stride * instanceCount;
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, bufferName);
+        capacity = Math.max(capacity, size);
+        gl4.glBufferData(GL4.GL_ARRAY_BUFFER, capacity, null, GL4.GL_STREAM_DRAW);
+        if (size > 0) {
+            gl4.glBufferSubData(GL4.GL_ARRAY_BUFFER, 0, size, data);
+        }
+        gl4.glBindBuffer(GL4.GL_ARRAY_BUFFER, 0);
+        this.instanceCount = instanceCount;
+    }
+    
+    public void dispose(GL4 gl4) {
+        if (bufferName != 0) {
+            gl4.glDeleteBuffers(1, new int[] { bufferName }, 0);
+            bufferName = 0;
+        }
+        capacity = 0;
+        instanceCount = 0;
+    }
+    
+    /**
+     * Returns the attributes to record in the vertex array of a geometry, with a
+     * divisor of 1.
+     */
+    List<Attribute> getAttributes(GL4 gl4) {
+        create(gl4);
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (AttributeFormat format : formats) {
+            attributes.add(new Attribute(format.index, bufferName, format.components, format.dataType,
+                    format.normalized, stride, format.offset, 1));
+        }
+        return attributes;
+    }
+    
+    private void create(GL4 gl4) {
+        if (bufferName == 0) {
+            int[] names = new int[1];
+            gl4.glGenBuffers(1, names, 0);
+            bufferName = names[0];
+        }
+    }
+
+}
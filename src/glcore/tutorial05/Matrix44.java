@@ -1,141 +1,630 @@
 package glcore.tutorial05;
 
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 
 public class Matrix44 {
 
+    /**
+     * Classifies the transformations, from the most specific to the most general.
+     * The multiplication picks a cheaper path when the operands are known to be
+     * affine (bottom row equal to 0, 0, 0, 1).
+     */
+    public enum Type {
+        IDENTITY,
+        TRANSLATION,
+        // rotation and translation only
+        RIGID,
+        AFFINE,
+        PROJECTIVE
+    }
+    
+    // whether the products and the vec4 transforms run on the SIMD paths of Matrix44Vector
+    static final boolean VECTOR = isVectorSupported();
+    
     private final float[] m = new float[16];
+    private Type type = Type.PROJECTIVE;
+    
+    /**
+     * Returns whether the Vector API module was added to the virtual machine and
+     * the platform has vectors of at least 4 floats, unless disabled with
+     * -Dglcore.vector=false.
+     */
+    private static boolean isVectorSupported() {
+        if (!Boolean.parseBoolean(System.getProperty("glcore.vector", "true"))
+                || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return false;
+        }
+        try {
+            return Matrix44Vector.isSupported();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
     
     public static Matrix44 identity() {
-    	Matrix44 matrix = new Matrix44();
-    	matrix.m[0] = 1.0f;
-    	matrix.m[5] = 1.0f;
-    	matrix.m[10] = 1.0f;
-    	matrix.m[15] = 1.0f;
-    	return matrix;
+        return new Matrix44().setIdentity();
     }
     
     public static Matrix44 ortho(float left,float right, float bottom, float top, float near, float far) {
+        return new Matrix44().setOrtho(left, right, bottom, top, near, far);
+    }
+
+    public static Matrix44 frustum(float left, float right, float bottom, float top, float near, float far) {
+        return new Matrix44().setFrustum(left, right, bottom, top, near, far);
+    }
+    
+    public static Matrix44 translate(float x, float y, float z) {
+        return new Matrix44().setTranslate(x, y, z);
+    }
+    
+    public static Matrix44 rotate(float a, float x, float y, float z) {
+        return new Matrix44().setRotate(a, x, y, z);
+    }
+    
+    public Matrix44 set(Matrix44 that) {
+        System.arraycopy(that.m, 0, m, 0, 16);
+        type = that.type;
+        return this;
+    }
+    
+    /**
+     * Copies the 16 floats stored at offset in src into this matrix.
+     * The type of the matrix is determined from the copied values.
+     */
+    public Matrix44 set(float[] src, int offset) {
+        System.arraycopy(src, offset, m, 0, 16);
+        type = classify(m, 0);
+        return this;
+    }
+    
+    /**
+     * Copies the 16 floats stored at offset in src into this matrix, whose type
+     * is known to be the given one, sparing their classification.
+     */
+    public Matrix44 set(float[] src, int offset, Type type) {
+        System.arraycopy(src, offset, m, 0, 16);
+        this.type = type;
+        return this;
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public Matrix44 setIdentity() {
+        Arrays.fill(m, 0.0f);
+        m[0] = 1.0f;
+        m[5] = 1.0f;
+        m[10] = 1.0f;
+        m[15] = 1.0f;
+        type = Type.IDENTITY;
+        return this;
+    }
+    
+    public Matrix44 setOrtho(float left,float right, float bottom, float top, float near, float far) {
         // Generate a orthogonal projection matrix as defined at:
         // http://www.opengl.org/sdk/docs/man/xhtml/glOrtho.xml
-        Matrix44 matrix = new Matrix44();
-        matrix.m[0] = 2 / (right - left);
-        matrix.m[1] = 0.0f;
-        matrix.m[2] = 0.0f;
-        matrix.m[3] = 0.0f;
-        matrix.m[4] = 0.0f;
-        matrix.m[5] = 2 / (top - bottom);
-        matrix.m[6] = 0.0f;
-        matrix.m[7] = 0.0f;
-        matrix.m[8] = 0.0f;
-        matrix.m[9] = 0.0f;
-        matrix.m[10] = -2 / (far - near);
-        matrix.m[11] = 0.0f;
-        matrix.m[12] = - (right + left) / (right - left);
-        matrix.m[13] = - (top + bottom) / (top - bottom);
-        matrix.m[14] = - (far + near) / (far - near);
-        matrix.m[15] = 1.0f;
-        return matrix;
+        m[0] = 2 / (right - left);
+        m[1] = 0.0f;
+        m[2] = 0.0f;
+        m[3] = 0.0f;
+        m[4] = 0.0f;
+        m[5] = 2 / (top - bottom);
+        m[6] = 0.0f;
+        m[7] = 0.0f;
+        m[8] = 0.0f;
+        m[9] = 0.0f;
+        m[10] = -2 / (far - near);
+        m[11] = 0.0f;
+        m[12] = - (right + left) / (right - left);
+        m[13] = - (top + bottom) / (top - bottom);
+        m[14] = - (far + near) / (far - near);
+        m[15] = 1.0f;
+        type = Type.AFFINE;
+        return this;
     }
 
-    public static Matrix44 frustum(float left, float right, float bottom, float top, float near, float far) {
+    public Matrix44 setFrustum(float left, float right, float bottom, float top, float near, float far) {
         // Generate a perspective projection matrix as defined at:
         // http://www.opengl.org/sdk/docs/man/xhtml/glFrustum.xml
-        Matrix44 matrix = new Matrix44();
-        matrix.m[0] = 2 * near / (right - left);
-        matrix.m[1] = 0.0f;
-        matrix.m[2] = 0.0f;
-        matrix.m[3] = 0.0f;
-        matrix.m[4] = 0.0f;
-        matrix.m[5] = 2 * near / (top - bottom);
-        matrix.m[6] = 0.0f;
-        matrix.m[7] = 0.0f;
-        matrix.m[8] = (right + left) / (right - left);
-        matrix.m[9] = (top + bottom) / (top - bottom);
-        matrix.m[10] = - (far + near) / (far - near);
-        matrix.m[11] = -1.0f;
-        matrix.m[12] = 0.0f;
-        matrix.m[13] = 0.0f;
-        matrix.m[14] = -2.0f * far * near / (far - near);
-        matrix.m[15] = 0.0f;
-        return matrix;
+        m[0] = 2 * near / (right - left);
+        m[1] = 0.0f;
+        m[2] = 0.0f;
+        m[3] = 0.0f;
+        m[4] = 0.0f;
+        m[5] = 2 * near / (top - bottom);
+        m[6] = 0.0f;
+        m[7] = 0.0f;
+        m[8] = (right + left) / (right - left);
+        m[9] = (top + bottom) / (top - bottom);
+        m[10] = - (far + near) / (far - near);
+        m[11] = -1.0f;
+        m[12] = 0.0f;
+        m[13] = 0.0f;
+        m[14] = -2.0f * far * near / (far - near);
+        m[15] = 0.0f;
+        type = Type.PROJECTIVE;
+        return this;
     }
     
-    public static Matrix44 translate(float x, float y, float z) {
+    public Matrix44 setTranslate(float x, float y, float z) {
         // Generate a translation matrix as defined at:
         // http://www.opengl.org/sdk/docs/man/xhtml/glTranslate.xml
-        Matrix44 matrix = new Matrix44();
-        matrix.m[0] = 1.0f;
-        matrix.m[1] = 0.0f;
-        matrix.m[2] = 0.0f;
-        matrix.m[3] = 0.0f;
-        matrix.m[4] = 0.0f;
-        matrix.m[5] = 1.0f;
-        matrix.m[6] = 0.0f;
-        matrix.m[7] = 0.0f;
-        matrix.m[8] = 0.0f;
-        matrix.m[9] = 0.0f;
-        matrix.m[10] = 1.0f;
-        matrix.m[11] = 0.0f;
-        matrix.m[12] = x;
-        matrix.m[13] = y;
-        matrix.m[14] = z;
-        matrix.m[15] = 1.0f;
-        return matrix;
+        m[0] = 1.0f;
+        m[1] = 0.0f;
+        m[2] = 0.0f;
+        m[3] = 0.0f;
+        m[4] = 0.0f;
+        m[5] = 1.0f;
+        m[6] = 0.0f;
+        m[7] = 0.0f;
+        m[8] = 0.0f;
+        m[9] = 0.0f;
+        m[10] = 1.0f;
+        m[11] = 0.0f;
+        m[12] = x;
+        m[13] = y;
+        m[14] = z;
+        m[15] = 1.0f;
+        type = Type.TRANSLATION;
+        return this;
     }
     
-    public static Matrix44 rotate(float a, float x, float y, float z) {
+    public Matrix44 setRotate(float a, float x, float y, float z) {
         // Generate a rotation matrix as defined at:
         // http://www.opengl.org/sdk/docs/man/xhtml/glRotate.xml
-        Matrix44 matrix = new Matrix44();
-        float c = (float) Math.cos(Math.toRadians(a));
-        float s = (float) Math.sin(Math.toRadians(a));
-        matrix.m[0] = x * x * (1 - c) + c;
-        matrix.m[1] = y * x * (1 - c) + z * s;
-        matrix.m[2] = x * z * (1 - c) - y * s;
-        matrix.m[3] = 0.0f;
-        matrix.m[4] = y * x * (1 - c) - z * s;
-        matrix.m[5] = y * y * (1 - c) + c;
-        matrix.m[6] = y * z * (1 - c) + x * s;
-        matrix.m[7] = 0.0f;
-        matrix.m[8] = x * z * (1 - c) + y * s;
-        matrix.m[9] = y * z * (1 - c) - x * s;
-        matrix.m[10] = z * z * (1 - c) + c;
-        matrix.m[11] = 0.0f;
-        matrix.m[12] = 0.0f;
-        matrix.m[13] = 0.0f;
-        matrix.m[14] = 0.0f;
-        matrix.m[15] = 1.0f;
-        return matrix;
+        double radians = Math.toRadians(a);
+        float c = (float) Math.cos(radians);
+        float s = (float) Math.sin(radians);
+        m[0] = x * x * (1 - c) + c;
+        m[1] = y * x * (1 - c) + z * s;
+        m[2] = x * z * (1 - c) - y * s;
+        m[3] = 0.0f;
+        m[4] = y * x * (1 - c) - z * s;
+        m[5] = y * y * (1 - c) + c;
+        m[6] = y * z * (1 - c) + x * s;
+        m[7] = 0.0f;
+        m[8] = x * z * (1 - c) + y * s;
+        m[9] = y * z * (1 - c) - x * s;
+        m[10] = z * z * (1 - c) + c;
+        m[11] = 0.0f;
+        m[12] = 0.0f;
+        m[13] = 0.0f;
+        m[14] = 0.0f;
+        m[15] = 1.0f;
+        type = Math.abs(x * x + y * y + z * z - 1.0f) < 1e-6f ? Type.RIGID : Type.AFFINE;
+        return this;
+    }
+    
+    /**
+     * Sets this matrix to the rotation described by the unit quaternion q.
+     */
+    public Matrix44 setRotate(Quaternion q) {
+        float x = q.getX(), y = q.getY(), z = q.getZ(), w = q.getW();
+        float xx = x * x, yy = y * y, zz = z * z;
+        float xy = x * y, xz = x * z, yz = y * z;
+        float wx = w * x, wy = w * y, wz = w * z;
+        m[0] = 1.0f - 2.0f * (yy + zz);
+        m[1] = 2.0f * (xy + wz);
+        m[2] = 2.0f * (xz - wy);
+        m[3] = 0.0f;
+        m[4] = 2.0f * (xy - wz);
+        m[5] = 1.0f - 2.0f * (xx + zz);
+        m[6] = 2.0f * (yz + wx);
+        m[7] = 0.0f;
+        m[8] = 2.0f * (xz + wy);
+        m[9] = 2.0f * (yz - wx);
+        m[10] = 1.0f - 2.0f * (xx + yy);
+        m[11] = 0.0f;
+        m[12] = 0.0f;
+        m[13] = 0.0f;
+        m[14] = 0.0f;
+        m[15] = 1.0f;
+        type = Type.RIGID;
+        return this;
     }
     
     public Matrix44 mult(Matrix44 that) {
-    	Matrix44 matrix = new Matrix44();
-    	for (int i = 0; i < 4; i++) {
-    		for (int j = 0; j < 4; j++) {
-    			matrix.m[i+j*4] =
-    				this.m[i+0] * that.m[j*4+0] +
-    				this.m[i+4] * that.m[j*4+1] +
-    				this.m[i+8] * that.m[j*4+2] +
-    				this.m[i+12] * that.m[j*4+3];
-    		}
-    	}
-    	return matrix;
+        return multInto(that, new Matrix44());
+    }
+
+    /**
+     * Computes this * that and stores the result in dest, which is returned.
+     * dest may be this or that, the product is accumulated in locals before
+     * being written back.
+     */
+    public Matrix44 multInto(Matrix44 that, Matrix44 dest) {
+        dest.type = mult(this.m, 0, this.type, that.m, 0, that.type, dest.m, 0);
+        return dest;
     }
 
+    /**
+     * Same as {@link #mult(float[], int, float[], int, float[], int)}, but skips
+     * the work that the types of the operands make unnecessary. Returns the type
+     * of the product.
+     */
+    public static Type mult(float[] a, int aOffset, Type aType, float[] b, int bOffset, Type bType, float[] dest, int destOffset) {
+        if (aType == Type.IDENTITY) {
+            System.arraycopy(b, bOffset, dest, destOffset, 16);
+            return bType;
+        }
+        if (bType == Type.IDENTITY) {
+            System.arraycopy(a, aOffset, dest, destOffset, 16);
+            return aType;
+        }
+        if (aType == Type.PROJECTIVE || bType == Type.PROJECTIVE) {
+            mult(a, aOffset, b, bOffset, dest, destOffset);
+            return Type.PROJECTIVE;
+        }
+        if (aType == Type.TRANSLATION && bType == Type.TRANSLATION) {
+            System.arraycopy(a, aOffset, dest, destOffset, 12);
+            dest[destOffset+12] = a[aOffset+12] + b[bOffset+12];
+            dest[destOffset+13] = a[aOffset+13] + b[bOffset+13];
+            dest[destOffset+14] = a[aOffset+14] + b[bOffset+14];
+            dest[destOffset+15] = 1.0f;
+            return Type.TRANSLATION;
+        }
+        multAffine(a, aOffset, b, bOffset, dest, destOffset);
+        return aType.compareTo(bType) > 0 ? aType : bType;
+    }
+    
+    /**
+     * Multiplies two affine matrices, ignoring their bottom rows.
+     */
+    private static void multAffine(float[] a, int aOffset, float[] b, int bOffset, float[] dest, int destOffset) {
+        float a00 = a[aOffset+0], a10 = a[aOffset+1], a20 = a[aOffset+2];
+        float a01 = a[aOffset+4], a11 = a[aOffset+5], a21 = a[aOffset+6];
+        float a02 = a[aOffset+8], a12 = a[aOffset+9], a22 = a[aOffset+10];
+        float a03 = a[aOffset+12], a13 = a[aOffset+13], a23 = a[aOffset+14];
+        for (int j = 0; j < 12; j += 4) {
+            float b0 = b[bOffset+j], b1 = b[bOffset+j+1], b2 = b[bOffset+j+2];
+            int r = destOffset + j;
+            dest[r+0] = a00 * b0 + a01 * b1 + a02 * b2;
+            dest[r+1] = a10 * b0 + a11 * b1 + a12 * b2;
+            dest[r+2] = a20 * b0 + a21 * b1 + a22 * b2;
+            dest[r+3] = 0.0f;
+        }
+        float b0 = b[bOffset+12], b1 = b[bOffset+13], b2 = b[bOffset+14];
+        dest[destOffset+12] = a00 * b0 + a01 * b1 + a02 * b2 + a03;
+        dest[destOffset+13] = a10 * b0 + a11 * b1 + a12 * b2 + a13;
+        dest[destOffset+14] = a20 * b0 + a21 * b1 + a22 * b2 + a23;
+        dest[destOffset+15] = 1.0f;
+    }
+    
+    /**
+     * Determines the type of the matrix stored at offset in m. Rigid transformations
+     * are not detected and reported as affine.
+     */
+    static Type classify(float[] m, int offset) {
+        if (m[offset+3] != 0.0f || m[offset+7] != 0.0f || m[offset+11] != 0.0f || m[offset+15] != 1.0f) {
+            return Type.PROJECTIVE;
+        }
+        if (m[offset+0] != 1.0f || m[offset+1] != 0.0f || m[offset+2] != 0.0f
+                || m[offset+4] != 0.0f || m[offset+5] != 1.0f || m[offset+6] != 0.0f
+                || m[offset+8] != 0.0f || m[offset+9] != 0.0f || m[offset+10] != 1.0f) {
+            return Type.AFFINE;
+        }
+        if (m[offset+12] != 0.0f || m[offset+13] != 0.0f || m[offset+14] != 0.0f) {
+            return Type.TRANSLATION;
+        }
+        return Type.IDENTITY;
+    }
+    
+    /**
+     * Multiplies the column-major 4x4 matrices stored at aOffset in a and at
+     * bOffset in b, and stores the product at destOffset in dest. dest may
+     * overlap a or b only if it starts at the same offset.
+     */
+    public static void mult(float[] a, int aOffset, float[] b, int bOffset, float[] dest, int destOffset) {
+        if (VECTOR) {
+            Matrix44Vector.mult(a, aOffset, b, bOffset, dest, destOffset);
+        } else {
+            multScalar(a, aOffset, b, bOffset, dest, destOffset);
+        }
+    }
+    
+    static void multScalar(float[] a, int aOffset, float[] b, int bOffset, float[] dest, int destOffset) {
+        float a00 = a[aOffset+0], a10 = a[aOffset+1], a20 = a[aOffset+2], a30 = a[aOffset+3];
+        float a01 = a[aOffset+4], a11 = a[aOffset+5], a21 = a[aOffset+6], a31 = a[aOffset+7];
+        float a02 = a[aOffset+8], a12 = a[aOffset+9], a22 = a[aOffset+10], a32 = a[aOffset+11];
+        float a03 = a[aOffset+12], a13 = a[aOffset+13], a23 = a[aOffset+14], a33 = a[aOffset+15];
+        for (int j = 0; j < 16; j += 4) {
+            float b0 = b[bOffset+j], b1 = b[bOffset+j+1], b2 = b[bOffset+j+2], b3 = b[bOffset+j+3];
+            int r = destOffset + j;
+            dest[r+0] = a00 * b0 + a01 * b1 + a02 * b2 + a03 * b3;
+            dest[r+1] = a10 * b0 + a11 * b1 + a12 * b2 + a13 * b3;
+            dest[r+2] = a20 * b0 + a21 * b1 + a22 * b2 + a23 * b3;
+            dest[r+3] = a30 * b0 + a31 * b1 + a32 * b2 + a33 * b3;
+        }
+    }
+
+    public float determinant() {
+        if (type == Type.IDENTITY || type == Type.TRANSLATION) {
+            return 1.0f;
+        }
+        if (type != Type.PROJECTIVE) {
+            return determinant3(m, 0);
+        }
+        float s0 = m[0] * m[5] - m[4] * m[1];
+        float s1 = m[0] * m[9] - m[8] * m[1];
+        float s2 = m[0] * m[13] - m[12] * m[1];
+        float s3 = m[4] * m[9] - m[8] * m[5];
+        float s4 = m[4] * m[13] - m[12] * m[5];
+        float s5 = m[8] * m[13] - m[12] * m[9];
+        float c5 = m[10] * m[15] - m[14] * m[11];
+        float c4 = m[6] * m[15] - m[14] * m[7];
+        float c3 = m[6] * m[11] - m[10] * m[7];
+        float c2 = m[2] * m[15] - m[14] * m[3];
+        float c1 = m[2] * m[11] - m[10] * m[3];
+        float c0 = m[2] * m[7] - m[6] * m[3];
+        return s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+    }
+    
+    /**
+     * Stores the inverse of this matrix in dest, which is returned. dest may be
+     * this. The computation takes the type of the matrix into account, e.g. the
+     * inverse of a rigid transformation is obtained by transposition.
+     * @throws ArithmeticException if the matrix is singular
+     */
+    public Matrix44 invertInto(Matrix44 dest) {
+        float[] r = dest.m;
+        switch (type) {
+        case IDENTITY:
+            dest.setIdentity();
+            break;
+        case TRANSLATION:
+            dest.setTranslate(-m[12], -m[13], -m[14]);
+            break;
+        case RIGID:
+        case AFFINE: {
+            float tx = m[12], ty = m[13], tz = m[14];
+            if (type == Type.RIGID) {
+                float m1 = m[1], m2 = m[2], m6 = m[6];
+                r[0] = m[0];
+                r[1] = m[4];
+                r[2] = m[8];
+                r[4] = m1;
+                r[5] = m[5];
+                r[6] = m[9];
+                r[8] = m2;
+                r[9] = m6;
+                r[10] = m[10];
+            } else {
+                invert3(m, 0, r, 0, 1, 4);
+            }
+            r[3] = 0.0f;
+            r[7] = 0.0f;
+            r[11] = 0.0f;
+            r[12] = -(r[0] * tx + r[4] * ty + r[8] * tz);
+            r[13] = -(r[1] * tx + r[5] * ty + r[9] * tz);
+            r[14] = -(r[2] * tx + r[6] * ty + r[10] * tz);
+            r[15] = 1.0f;
+            dest.type = type;
+            break;
+        }
+        default: {
+            float s0 = m[0] * m[5] - m[4] * m[1];
+            float s1 = m[0] * m[9] - m[8] * m[1];
+            float s2 = m[0] * m[13] - m[12] * m[1];
+            float s3 = m[4] * m[9] - m[8] * m[5];
+            float s4 = m[4] * m[13] - m[12] * m[5];
+            float s5 = m[8] * m[13] - m[12] * m[9];
+            float c5 = m[10] * m[15] - m[14] * m[11];
+            float c4 = m[6] * m[15] - m[14] * m[7];
+            float c3 = m[6] * m[11] - m[10] * m[7];
+            float c2 = m[2] * m[15] - m[14] * m[3];
+            float c1 = m[2] * m[11] - m[10] * m[3];
+            float c0 = m[2] * m[7] - m[6] * m[3];
+            float det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+            if (det == 0.0f) {
+                throw new ArithmeticException("Matrix is not invertible");
+            }
+            float d = 1.0f / det;
+            float m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3];
+            float m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+            float m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11];
+            float m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+            r[0] = ( m5 * c5 - m9 * c4 + m13 * c3) * d;
+            r[4] = (-m4 * c5 + m8 * c4 - m12 * c3) * d;
+            r[8] = ( m7 * s5 - m11 * s4 + m15 * s3) * d;
+            r[12] = (-m6 * s5 + m10 * s4 - m14 * s3) * d;
+            r[1] = (-m1 * c5 + m9 * c2 - m13 * c1) * d;
+            r[5] = ( m0 * c5 - m8 * c2 + m12 * c1) * d;
+            r[9] = (-m3 * s5 + m11 * s2 - m15 * s1) * d;
+            r[13] = ( m2 * s5 - m10 * s2 + m14 * s1) * d;
+            r[2] = ( m1 * c4 - m5 * c2 + m13 * c0) * d;
+            r[6] = (-m0 * c4 + m4 * c2 - m12 * c0) * d;
+            r[10] = ( m3 * s4 - m7 * s2 + m15 * s0) * d;
+            r[14] = (-m2 * s4 + m6 * s2 - m14 * s0) * d;
+            r[3] = (-m1 * c3 + m5 * c1 - m9 * c0) * d;
+            r[7] = ( m0 * c3 - m4 * c1 + m8 * c0) * d;
+            r[11] = (-m3 * s3 + m7 * s1 - m11 * s0) * d;
+            r[15] = ( m2 * s3 - m6 * s1 + m10 * s0) * d;
+            dest.type = Type.PROJECTIVE;
+        }
+        }
+        return dest;
+    }
+    
+    /**
+     * Stores the normal matrix of this matrix, i.e. the inverse transpose of its
+     * upper left 3x3 part, as 9 floats in column-major order at offset in dest,
+     * ready to be passed to glUniformMatrix3fv.
+     */
+    public float[] normalMatrixInto(float[] dest, int offset) {
+        normalMatrix(m, 0, type, dest, offset);
+        return dest;
+    }
+    
+    /**
+     * Same as {@link #normalMatrixInto(float[], int)} for the matrix stored at
+     * offset in m, with the given type.
+     * @throws ArithmeticException if the matrix is singular
+     */
+    public static void normalMatrix(float[] m, int offset, Type type, float[] dest, int destOffset) {
+        if (type == Type.AFFINE || type == Type.PROJECTIVE) {
+            // the inverse is written transposed
+            invert3(m, offset, dest, destOffset, 3, 1);
+        } else {
+            // rotations are their own inverse transpose
+            for (int j = 0; j < 3; j++) {
+                dest[destOffset+j*3+0] = m[offset+j*4+0];
+                dest[destOffset+j*3+1] = m[offset+j*4+1];
+                dest[destOffset+j*3+2] = m[offset+j*4+2];
+            }
+        }
+    }
+    
+    private static float determinant3(float[] m, int offset) {
+        return m[offset+0] * (m[offset+5] * m[offset+10] - m[offset+9] * m[offset+6])
+             - m[offset+4] * (m[offset+1] * m[offset+10] - m[offset+9] * m[offset+2])
+             + m[offset+8] * (m[offset+1] * m[offset+6] - m[offset+5] * m[offset+2]);
+    }
+    
+    /**
+     * Inverts the upper left 3x3 part of the matrix stored at offset in m. The
+     * element of the inverse at row i and column j is stored at
+     * destOffset + i * rowStride + j * columnStride in dest. The other elements
+     * of dest are left untouched, dest may be m.
+     */
+    private static void invert3(float[] m, int offset, float[] dest, int destOffset, int rowStride, int columnStride) {
+        float m0 = m[offset+0], m1 = m[offset+1], m2 = m[offset+2];
+        float m4 = m[offset+4], m5 = m[offset+5], m6 = m[offset+6];
+        float m8 = m[offset+8], m9 = m[offset+9], m10 = m[offset+10];
+        float c0 = m5 * m10 - m9 * m6;
+        float c1 = m9 * m2 - m1 * m10;
+        float c2 = m1 * m6 - m5 * m2;
+        float det = m0 * c0 + m4 * c1 + m8 * c2;
+        if (det == 0.0f) {
+            throw new ArithmeticException("Matrix is not invertible");
+        }
+        float d = 1.0f / det;
+        int r0 = destOffset, r1 = destOffset + rowStride, r2 = destOffset + 2 * rowStride;
+        int c = columnStride;
+        dest[r0] = c0 * d;
+        dest[r1] = c1 * d;
+        dest[r2] = c2 * d;
+        dest[r0+c] = (m8 * m6 - m4 * m10) * d;
+        dest[r1+c] = (m0 * m10 - m8 * m2) * d;
+        dest[r2+c] = (m4 * m2 - m0 * m6) * d;
+        dest[r0+2*c] = (m4 * m9 - m8 * m5) * d;
+        dest[r1+2*c] = (m8 * m1 - m0 * m9) * d;
+        dest[r2+2*c] = (m0 * m5 - m4 * m1) * d;
+    }
+    
     public float[] mult(float[] vec4) {
-        float[] result = new float[4];
+        return transformInto(vec4, new float[4]);
+    }
+    
+    /**
+     * Transforms vec4 by this matrix and stores the result in dest, which is
+     * returned. dest may be the same array as vec4.
+     */
+    public float[] transformInto(float[] vec4, float[] dest) {
+        float x = vec4[0], y = vec4[1], z = vec4[2], w = vec4[3];
         for (int i = 0; i < 4; i++) {
-            result[i] =
-                this.m[i+0] * vec4[0] +
-                this.m[i+4] * vec4[1] +
-                this.m[i+8] * vec4[2] +
-                this.m[i+12] * vec4[3];
+            dest[i] =
+                this.m[i+0] * x +
+                this.m[i+4] * y +
+                this.m[i+8] * z +
+                this.m[i+12] * w;
+        }
+        return dest;
+    }
+    
+    /**
+     * Transforms count consecutive vec4 stored in data starting at offset, in place.
+     */
+    public void transformVectors(float[] data, int offset, int count) {
+        int end = offset + 4 * count;
+        if (VECTOR) {
+            offset = Matrix44Vector.transformVectors(m, data, offset, end);
+        }
+        transformVectorsScalar(data, offset, (end - offset) / 4);
+    }
+    
+    void transformVectorsScalar(float[] data, int offset, int count) {
+        float m00 = m[0], m10 = m[1], m20 = m[2], m30 = m[3];
+        float m01 = m[4], m11 = m[5], m21 = m[6], m31 = m[7];
+        float m02 = m[8], m12 = m[9], m22 = m[10], m32 = m[11];
+        float m03 = m[12], m13 = m[13], m23 = m[14], m33 = m[15];
+        int end = offset + 4 * count;
+        for (int i = offset; i < end; i += 4) {
+            float x = data[i], y = data[i+1], z = data[i+2], w = data[i+3];
+            data[i+0] = m00 * x + m01 * y + m02 * z + m03 * w;
+            data[i+1] = m10 * x + m11 * y + m12 * z + m13 * w;
+            data[i+2] = m20 * x + m21 * y + m22 * z + m23 * w;
+            data[i+3] = m30 * x + m31 * y + m32 * z + m33 * w;
+        }
+    }
+    
+    /**
+     * Transforms the vec4 between the position and the limit of the buffer, in place.
+     * The position of the buffer is left unchanged. Buffers backed by an array
+     * take the path of {@link #transformVectors(float[], int, int)}.
+     */
+    public void transformVectors(FloatBuffer buffer) {
+        if (buffer.hasArray()) {
+            transformVectors(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() / 4);
+            return;
+        }
+        float m00 = m[0], m10 = m[1], m20 = m[2], m30 = m[3];
+        float m01 = m[4], m11 = m[5], m21 = m[6], m31 = m[7];
+        float m02 = m[8], m12 = m[9], m22 = m[10], m32 = m[11];
+        float m03 = m[12], m13 = m[13], m23 = m[14], m33 = m[15];
+        int end = buffer.position() + (buffer.remaining() & ~3);
+        for (int i = buffer.position(); i < end; i += 4) {
+            float x = buffer.get(i), y = buffer.get(i+1), z = buffer.get(i+2), w = buffer.get(i+3);
+            buffer.put(i+0, m00 * x + m01 * y + m02 * z + m03 * w);
+            buffer.put(i+1, m10 * x + m11 * y + m12 * z + m13 * w);
+            buffer.put(i+2, m20 * x + m21 * y + m22 * z + m23 * w);
+            buffer.put(i+3, m30 * x + m31 * y + m32 * z + m33 * w);
         }
-        return result;
     }
     
+    /**
+     * Transforms count consecutive 3D points stored in data starting at offset, in place.
+     * The points are taken with w = 1 and the resulting w is dropped, which is only
+     * meaningful for affine matrices (i.e. not for projections).
+     */
+    public void transformPoints(float[] data, int offset, int count) {
+        float m00 = m[0], m10 = m[1], m20 = m[2];
+        float m01 = m[4], m11 = m[5], m21 = m[6];
+        float m02 = m[8], m12 = m[9], m22 = m[10];
+        float m03 = m[12], m13 = m[13], m23 = m[14];
+        int end = offset + 3 * count;
+        for (int i = offset; i < end; i += 3) {
+            float x = data[i], y = data[i+1], z = data[i+2];
+            data[i+0] = m00 * x + m01 * y + m02 * z + m03;
+            data[i+1] = m10 * x + m11 * y + m12 * z + m13;
+            data[i+2] = m20 * x + m21 * y + m22 * z + m23;
+        }
+    }
+    
+    /**
+     * Transforms the 3D points between the position and the limit of the buffer, in place.
+     * The position of the buffer is left unchanged.
+     * @see #transformPoints(float[], int, int)
+     */
+    public void transformPoints(FloatBuffer buffer) {
+        float m00 = m[0], m10 = m[1], m20 = m[2];
+        float m01 = m[4], m11 = m[5], m21 = m[6];
+        float m02 = m[8], m12 = m[9], m22 = m[10];
+        float m03 = m[12], m13 = m[13], m23 = m[14];
+        int end = buffer.position() + buffer.remaining() / 3 * 3;
+        for (int i = buffer.position(); i < end; i += 3) {
+            float x = buffer.get(i), y = buffer.get(i+1), z = buffer.get(i+2);
+            buffer.put(i+0, m00 * x + m01 * y + m02 * z + m03);
+            buffer.put(i+1, m10 * x + m11 * y + m12 * z + m13);
+            buffer.put(i+2, m20 * x + m21 * y + m22 * z + m23);
+        }
+    }
     
+    /**
+     * Returns the backing array of the matrix, in column-major order. It must
+     * only be read, use {@link #set(float[], int)} to change the matrix.
+     */
     public float[] raw() {
     	return m;
     }
@@ -0,0 +1,118 @@
+package glcore.tutorial05;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD paths of {@link Matrix44}, on the incubating JDK Vector API. Only
+ * loaded when the jdk.incubator.vector module is present, i.e. when the
+ * virtual machine is started with --add-modules jdk.incubator.vector, the
+ * scalar loops of Matrix44 being used otherwise.
+ * <p>
+ * A column of a matrix fits a vector of 4 lanes. The vec4 transform works on
+ * vectors of up to 8 lanes, each holding several vec4: each column of the
+ * matrix is repeated across the vector, and the x, y, z and w of each vec4
+ * are spread over its 4 lanes by a shuffle, so that a vector of vec4 is
+ * transformed with 4 shuffles and 4 fused multiply-adds.
+ */
+final class Matrix44Vector {
+
+    // at most 256 bits, the shuffles of wider vectors falling back to boxed
+    // vectors in the JDK 17 compiler
+    private static final VectorSpecies<Float> SPECIES =
+            FloatVector.SPECIES_PREFERRED.vectorBitSize() >= 256 ? FloatVector.SPECIES_256 : FloatVector.SPECIES_PREFERRED;
+    // for each component, the shuffle repeating it over the lanes of its vec4
+    private static final VectorShuffle<Float> SPREAD_X = spread(0);
+    private static final VectorShuffle<Float> SPREAD_Y = spread(1);
+    private static final VectorShuffle<Float> SPREAD_Z = spread(2);
+    private static final VectorShuffle<Float> SPREAD_W = spread(3);
+    // for each column, the shuffle repeating it over a vector loaded from the
+    // multiple of the vector length before it
+    private static final VectorShuffle<Float> REPEAT_0 = repeat(0);
+    private static final VectorShuffle<Float> REPEAT_1 = repeat(1);
+    private static final VectorShuffle<Float> REPEAT_2 = repeat(2);
+    private static final VectorShuffle<Float> REPEAT_3 = repeat(3);
+    
+    private Matrix44Vector() {
+    }
+    
+    /**
+     * Returns whether the platform has vectors of at least 4 floats.
+     */
+    static boolean isSupported() {
+        return SPECIES.length() >= 4;
+    }
+    
+    private static VectorShuffle<Float> spread(int component) {
+        int[] indices = new int[SPECIES.length()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (i & ~3) + component;
+        }
+        return VectorShuffle.fromArray(SPECIES, indices, 0);
+    }
+    
+    private static VectorShuffle<Float> repeat(int column) {
+        int[] indices = new int[SPECIES.length()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = 4 * column % indices.length + (i & 3);
+        }
+        return VectorShuffle.fromArray(SPECIES, indices, 0);
+    }
+    
+    /**
+     * Same as {@link Matrix44#mult(float[], int, float[], int, float[], int)}.
+     * The columns of the product are the columns of b transformed by a, as
+     * vec4, and are computed as such.
+     */
+    static void mult(float[] a, int aOffset, float[] b, int bOffset, float[] dest, int destOffset) {
+        FloatVector c0 = repeat(a, aOffset, 0, REPEAT_0);
+        FloatVector c1 = repeat(a, aOffset, 1, REPEAT_1);
+        FloatVector c2 = repeat(a, aOffset, 2, REPEAT_2);
+        FloatVector c3 = repeat(a, aOffset, 3, REPEAT_3);
+        // a is read before dest is written, and each column of b before the same column of dest
+        for (int i = 0; i < 16; i += SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            transform(c0, c1, c2, c3, v).intoArray(dest, destOffset + i);
+        }
+    }
+    
+    /**
+     * Transforms the vec4 of data from offset to end, in place, by the matrix m,
+     * as many as fill whole vectors, and returns the offset of the first vec4
+     * left to transform.
+     */
+    static int transformVectors(float[] m, float[] data, int offset, int end) {
+        FloatVector c0 = repeat(m, 0, 0, REPEAT_0);
+        FloatVector c1 = repeat(m, 0, 1, REPEAT_1);
+        FloatVector c2 = repeat(m, 0, 2, REPEAT_2);
+        FloatVector c3 = repeat(m, 0, 3, REPEAT_3);
+        int length = SPECIES.length();
+        int i = offset;
+        for (; i <= end - length; i += length) {
+            transform(c0, c1, c2, c3, FloatVector.fromArray(SPECIES, data, i)).intoArray(data, i);
+        }
+        return i;
+    }
+    
+    /**
+     * Returns the vec4 of v transformed by the matrix whose repeated columns are
+     * c0 to c3.
+     */
+    private static FloatVector transform(FloatVector c0, FloatVector c1, FloatVector c2, FloatVector c3, FloatVector v) {
+        FloatVector r = c0.mul(v.rearrange(SPREAD_X));
+        r = c1.fma(v.rearrange(SPREAD_Y), r);
+        r = c2.fma(v.rearrange(SPREAD_Z), r);
+        return c3.fma(v.rearrange(SPREAD_W), r);
+    }
+    
+    /**
+     * Returns a vector holding a column of the matrix stored at offset in m,
+     * repeated by its shuffle.
+     */
+    private static FloatVector repeat(float[] m, int offset, int column, VectorShuffle<Float> shuffle) {
+        int length = SPECIES.length();
+        return FloatVector.fromArray(SPECIES, m, offset + 4 * column / length * length).rearrange(shuffle);
+    }
+
+}
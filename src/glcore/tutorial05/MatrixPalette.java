@@ -0,0 +1,118 @@
+package glcore.tutorial05;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Stores many matrices one after the other in a direct buffer, so that the
+ * transforms of thousands of objects can be sent to the GPU in a single call,
+ * either as a uniform array, as a uniform block or as a texture buffer.
+ */
+public class MatrixPalette {
+
+    private final int capacity;
+    private final FloatBuffer matrices;
+    // scratch matrix used to compute products before storing them
+    private final Matrix44 product = new Matrix44();
+    
+    // created on the first upload as a buffer object
+    private int bufferName;
+    private int textureName;
+    
+    public MatrixPalette(int capacity) {
+        this.capacity = capacity;
+        matrices = ByteBuffer.allocateDirect(4 * 16 * capacity)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Returns the buffer holding the matrices, in column-major order, 16 floats per slot.
+     */
+    public FloatBuffer getBuffer() {
+        return matrices;
+    }
+    
+    public MatrixPalette set(int slot, Matrix44 matrix) {
+        matrices.position(16 * slot);
+        matrices.put(matrix.raw());
+        matrices.clear();
+        return this;
+    }
+    
+    /**
+     * Stores a * b in the given slot.
+     */
+    public MatrixPalette set(int slot, Matrix44 a, Matrix44 b) {
+        return set(slot, a.multInto(b, product));
+    }
+    
+    /**
+     * Uploads the first count matrices to a mat4 uniform array.
+     */
+    public void uploadUniform(GL4 gl4, int location, int count) {
+        matrices.limit(16 * count);
+        gl4.glUniformMatrix4fv(location, count, false, matrices);
+        matrices.clear();
+    }
+    
+    /**
+     * Uploads the first count matrices to a uniform buffer object bound to
+     * the given binding point, as a std140 array of mat4.
+     */
+    public void uploadUniformBuffer(GL4 gl4, int bindingPoint, int count) {
+        upload(gl4, GL4.GL_UNIFORM_BUFFER, count);
+        gl4.glBindBufferBase(GL4.GL_UNIFORM_BUFFER, bindingPoint, bufferName);
+    }
+    
+    /**
+     * Uploads the first count matrices to a buffer texture bound to the given
+     * texture unit, each matrix being stored as 4 RGBA32F texels, one per column.
+     */
+    public void uploadTextureBuffer(GL4 gl4, int textureUnit, int count) {
+        upload(gl4, GL4.GL_TEXTURE_BUFFER, count);
+        if (textureName == 0) {
+            int[] names = new int[1];
+            gl4.glGenTextures(1, names, 0);
+            textureName = names[0];
+        }
+        gl4.glActiveTexture(GL4.GL_TEXTURE0 + textureUnit);
+        gl4.glBindTexture(GL4.GL_TEXTURE_BUFFER, textureName);
+        gl4.glTexBuffer(GL4.GL_TEXTURE_BUFFER, GL4.GL_RGBA32F, bufferName);
+    }
+    
+    public void dispose(GL4 gl4) {
+        if (bufferName != 0) {
+            gl4.glDeleteBuffers(1, new int[] { bufferName }, 0);
+            bufferName = 0;
+        }
+        if (textureName != 0) {
+            gl4.glDeleteTextures(1, new int[] { textureName }, 0);
+            textureName = 0;
+        }
+    }
+    
+    private void upload(GL4 gl4, int target, int count) {
+        if (bufferName == 0) {
+            int[] names = new int[1];
+            gl4.glGenBuffers(1, names, 0);
+            bufferName = names[0];
+        }
+        matrices.limit(16 * count);
+        gl4.glBindBuffer(target, bufferName);
+        // the previous content is orphaned rather than overwritten, so that
+        // the upload does not wait for the draws still using it
+        gl4.glBufferData(target, 4 * 16 * capacity, null, GL4.GL_DYNAMIC_DRAW);
+        gl4.glBufferSubData(target, 0, 4 * 16 * count, matrices);
+        gl4.glBindBuffer(target, 0);
+        matrices.clear();
+    }
+    
+}
@@ -1,41 +1,166 @@
 package glcore.tutorial05;
 
-import java.util.Stack;
-
+/**
+ * Keeps track of the model view and model view projection matrices. The
+ * matrices are stored one after the other in preallocated float arrays of
+ * a fixed maximum depth, so pushing and popping never allocates and a
+ * single instance can be reused from frame to frame.
+ * <p>
+ * The model view matrix is multiplied when pushed, but the model view
+ * projection matrix is only computed when requested: the matrices pushed
+ * at each level are kept, and the products are cached for the levels below
+ * the last computed one. Levels that are pushed and popped without their
+ * model view projection matrix being read cost no multiplication.
+ * <p>
+ * Likewise, the normal matrix of a model view level is only computed the
+ * first time it is requested, and cached until the level is popped.
+ */
 public class MatrixStack {
 
-    private Stack<Matrix44> modelViewProjectionMatrix = new Stack<Matrix44>();
-    private Stack<Matrix44> modelViewMatrix = new Stack<Matrix44>();
+    public static final int DEFAULT_MAX_DEPTH = 32;
+    
+    private static final float[] IDENTITY = Matrix44.identity().raw();
+    
+    private final int maxDepth;
+    // the matrices pushed at each level, whether projection or model view
+    private final float[] pushedMatrices;
+    private final Matrix44.Type[] pushedTypes;
+    // the products of the pushed matrices, only up to date up to modelViewProjectionValid
+    private final float[] modelViewProjectionMatrices;
+    private final Matrix44.Type[] modelViewProjectionTypes;
+    private final float[] modelViewMatrices;
+    private final Matrix44.Type[] modelViewTypes;
+    // the normal matrices of the model view levels, 9 floats each
+    private final float[] normalMatrices;
+    private final boolean[] normalMatrixValid;
+    // offsets of the top matrices in the arrays above
+    private int modelViewProjectionTop;
+    private int modelViewProjectionValid;
+    private int modelViewTop;
+    
+    // returned by the getters, overwritten at each call
+    private final Matrix44 modelViewProjectionMatrix = new Matrix44();
+    private final Matrix44 modelViewMatrix = new Matrix44();
+    private final float[] normalMatrix = new float[9];
     
     public MatrixStack() {
-        Matrix44 identity = Matrix44.identity();
-        modelViewProjectionMatrix.push(identity);
-        modelViewMatrix.push(identity);
+        this(DEFAULT_MAX_DEPTH);
+    }
+    
+    /**
+     * @param maxDepth the maximum number of matrices on each stack, including
+     *                 the identity at the bottom
+     */
+    public MatrixStack(int maxDepth) {
+        this.maxDepth = maxDepth;
+        pushedMatrices = new float[16 * maxDepth];
+        pushedTypes = new Matrix44.Type[maxDepth];
+        modelViewProjectionMatrices = new float[16 * maxDepth];
+        modelViewProjectionTypes = new Matrix44.Type[maxDepth];
+        modelViewMatrices = new float[16 * maxDepth];
+        modelViewTypes = new Matrix44.Type[maxDepth];
+        normalMatrices = new float[9 * maxDepth];
+        normalMatrixValid = new boolean[maxDepth];
+        reset();
+    }
+    
+    /**
+     * Empties both stacks, leaving only the identity matrix.
+     */
+    public MatrixStack reset() {
+        System.arraycopy(IDENTITY, 0, pushedMatrices, 0, 16);
+        System.arraycopy(IDENTITY, 0, modelViewProjectionMatrices, 0, 16);
+        System.arraycopy(IDENTITY, 0, modelViewMatrices, 0, 16);
+        modelViewProjectionTop = 0;
+        modelViewProjectionValid = 0;
+        modelViewTop = 0;
+        pushedTypes[0] = Matrix44.Type.IDENTITY;
+        modelViewProjectionTypes[0] = Matrix44.Type.IDENTITY;
+        modelViewTypes[0] = Matrix44.Type.IDENTITY;
+        normalMatrixValid[0] = false;
+        return this;
     }
     
     public void pushProjection(Matrix44 matrix) {
-        modelViewProjectionMatrix.push(modelViewProjectionMatrix.peek().mult(matrix));
+        modelViewProjectionTop = next(modelViewProjectionTop);
+        System.arraycopy(matrix.raw(), 0, pushedMatrices, modelViewProjectionTop, 16);
+        pushedTypes[modelViewProjectionTop / 16] = matrix.getType();
     }
 
     public void pushModelView(Matrix44 matrix) {
-        modelViewProjectionMatrix.push(modelViewProjectionMatrix.peek().mult(matrix));
-        modelViewMatrix.push(modelViewMatrix.peek().mult(matrix));
+        pushProjection(matrix);
+        int next = next(modelViewTop);
+        modelViewTypes[next / 16] = Matrix44.mult(modelViewMatrices, modelViewTop, modelViewTypes[modelViewTop / 16],
+                                                  matrix.raw(), 0, matrix.getType(),
+                                                  modelViewMatrices, next);
+        normalMatrixValid[next / 16] = false;
+        modelViewTop = next;
     }
 
     public void popProjection() {
-        modelViewProjectionMatrix.pop();
+        modelViewProjectionTop = previous(modelViewProjectionTop);
+        modelViewProjectionValid = Math.min(modelViewProjectionValid, modelViewProjectionTop);
     }
 
     public void popModelView() {
-        modelViewProjectionMatrix.pop();
-        modelViewMatrix.pop();
+        popProjection();
+        modelViewTop = previous(modelViewTop);
     }
 
+    /**
+     * Returns the matrix at the top of the model view projection stack. The
+     * returned instance belongs to the stack and is overwritten by the next call.
+     */
     public Matrix44 getModelViewProjectionMatrix() {
-        return modelViewProjectionMatrix.peek();
+        while (modelViewProjectionValid < modelViewProjectionTop) {
+            int previous = modelViewProjectionValid;
+            modelViewProjectionValid += 16;
+            int level = modelViewProjectionValid / 16;
+            modelViewProjectionTypes[level] = Matrix44.mult(modelViewProjectionMatrices, previous, modelViewProjectionTypes[level - 1],
+                                                            pushedMatrices, modelViewProjectionValid, pushedTypes[level],
+                                                            modelViewProjectionMatrices, modelViewProjectionValid);
+        }
+        return modelViewProjectionMatrix.set(modelViewProjectionMatrices, modelViewProjectionTop,
+                                             modelViewProjectionTypes[modelViewProjectionTop / 16]);
     }
     
+    /**
+     * Returns the matrix at the top of the model view stack. The returned
+     * instance belongs to the stack and is overwritten by the next call.
+     */
     public Matrix44 getModelViewMatrix() {
-        return modelViewMatrix.peek();
+        return modelViewMatrix.set(modelViewMatrices, modelViewTop, modelViewTypes[modelViewTop / 16]);
     }
+    
+    /**
+     * Returns the normal matrix of the top of the model view stack, i.e. the
+     * inverse transpose of its upper left 3x3 part, as 9 floats in column-major
+     * order. The returned array belongs to the stack and is overwritten by the
+     * next call.
+     */
+    public float[] getNormalMatrix() {
+        int level = modelViewTop / 16;
+        if (!normalMatrixValid[level]) {
+            Matrix44.normalMatrix(modelViewMatrices, modelViewTop, modelViewTypes[level], normalMatrices, 9 * level);
+            normalMatrixValid[level] = true;
+        }
+        System.arraycopy(normalMatrices, 9 * level, normalMatrix, 0, 9);
+        return normalMatrix;
+    }
+    
+    private int next(int top) {
+        int next = top + 16;
+        if (next == 16 * maxDepth) {
+            throw new IllegalStateException("Matrix stack overflow");
+        }
+        return next;
+    }
+    
+    private int previous(int top) {
+        if (top == 0) {
+            throw new IllegalStateException("Matrix stack underflow");
+        }
+        return top - 16;
+    }
+    
 }
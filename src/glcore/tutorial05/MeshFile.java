@@ -0,0 +1,350 @@
+package glcore.tutorial05;
+
+import glcore.tutorial05.GeometryBuilder.AttributeData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Binary mesh container, read by mapping the file so that the attribute and
+ * index data go from the page cache to glBufferData without being copied
+ * through the heap. The file is little-endian and made of a header, the
+ * attribute descriptors, then the data blobs, each starting on 16 bytes:
+ * <pre>
+ * header      "JGLM", version, primitive type, vertex count, position attribute
+ *             index or -1, attribute count, index type or 0, index count,
+ *             index blob offset and size (2 longs)
+ * attribute   index, components, data type, normalized (0 or 1),
+ *             blob offset and size (2 longs)
+ * </pre>
+ * The data of an attribute has the layout of its data type as declared to
+ * glVertexAttribPointer, the indices are unsigned shorts or ints.
+ */
+public class MeshFile {
+
+    public static final int MAGIC = 'J' | 'G' << 8 | 'L' << 16 | 'M' << 24;
+    public static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 48;
+    private static final int ATTRIBUTE_SIZE = 32;
+    private static final int ALIGNMENT = 16;
+    
+    /**
+     * An attribute of a mesh file, its data being a slice of the mapped file.
+     */
+    public static class Attribute {
+        public final int index;
+        public final int components;
+        public final int dataType;
+        public final boolean normalized;
+        public final ByteBuffer data;
+        
+        Attribute(int index, int components, int dataType, boolean normalized, ByteBuffer data) {
+            this.index = index;
+            this.components = components;
+            this.dataType = dataType;
+            this.normalized = normalized;
+            this.data = data;
+        }
+    }
+    
+    private final int primitiveType;
+    private final int vertexCount;
+    private final int positionAttributeIndex;
+    private final List<Attribute> attributes;
+    // a ShortBuffer or an IntBuffer, null when the mesh is not indexed
+    private final Buffer indices;
+    
+    private MeshFile(int primitiveType, int vertexCount, int positionAttributeIndex, List<Attribute> attributes, Buffer indices) {
+        this.primitiveType = primitiveType;
+        this.vertexCount = vertexCount;
+        this.positionAttributeIndex = positionAttributeIndex;
+        this.attributes = attributes;
+        this.indices = indices;
+    }
+    
+    public int getPrimitiveType() {
+        return primitiveType;
+    }
+    
+    public int getVertexCount() {
+        return vertexCount;
+    }
+    
+    public int getPositionAttributeIndex() {
+        return positionAttributeIndex;
+    }
+    
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+    
+    public Buffer getIndices() {
+        return indices;
+    }
+    
+    /**
+     * Maps the mesh file. Only the header is read, the data being loaded by the
+     * operating system when accessed. The mapping stays valid after the method
+     * returns, until the buffers are garbage collected.
+     */
+    public static MeshFile read(File file) throws IOException {
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            throw new UnsupportedOperationException("Mesh files are only mapped on little-endian platforms");
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Not a mesh file: " + file);
+            }
+            ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a mesh file: " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported mesh file version " + header.getInt(4) + ": " + file);
+            }
+            int primitiveType = header.getInt(8);
+            int vertexCount = header.getInt(12);
+            int positionAttributeIndex = header.getInt(16);
+            int attributeCount = header.getInt(20);
+            int indexType = header.getInt(24);
+            Buffer indices = null;
+            if (indexType != 0) {
+                ByteBuffer blob = map(channel, fileSize, header.getLong(32), header.getLong(40));
+                indices = indexType == GL4.GL_UNSIGNED_SHORT ? blob.asShortBuffer() : blob.asIntBuffer();
+            }
+            ByteBuffer descriptors = channel.map(MapMode.READ_ONLY, HEADER_SIZE, (long) ATTRIBUTE_SIZE * attributeCount)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            for (int i = 0; i < attributeCount; i++) {
+                int d = i * ATTRIBUTE_SIZE;
+                ByteBuffer data = map(channel, fileSize, descriptors.getLong(d + 16), descriptors.getLong(d + 24));
+                attributes.add(new Attribute(descriptors.getInt(d), descriptors.getInt(d + 4), descriptors.getInt(d + 8),
+                        descriptors.getInt(d + 12) != 0, data));
+            }
+            return new MeshFile(primitiveType, vertexCount, positionAttributeIndex, attributes, indices);
+        } finally {
+            // the mappings outlive the channel
+            channel.close();
+        }
+    }
+    
+    private static ByteBuffer map(FileChannel channel, long fileSize, long offset, long size) throws IOException {
+        if (offset < 0 || size < 0 || offset + size > fileSize) {
+            throw new IOException("Blob outside of the mesh file");
+        }
+        return channel.map(MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Reads all the data of the mesh in memory now rather than when it is first
+     * accessed, so that the disk accesses happen on the calling thread.
+     */
+    public MeshFile load() {
+        for (Attribute attribute : attributes) {
+            ((MappedByteBuffer) attribute.data).load();
+        }
+        // the indices are a view of their blob, read one value per 4 KB page
+        if (indices instanceof ShortBuffer) {
+            ShortBuffer shorts = (ShortBuffer) indices;
+            for (int i = 0; i < shorts.limit(); i += 2048) {
+                shorts.get(i);
+            }
+        } else if (indices != null) {
+            IntBuffer ints = (IntBuffer) indices;
+            for (int i = 0; i < ints.limit(); i += 1024) {
+                ints.get(i);
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Adds the attributes and indices of the mesh to the builder, as buffers
+     * mapping the file.
+     */
+    public GeometryBuilder addTo(GeometryBuilder builder) {
+        for (Attribute attribute : attributes) {
+            builder.addAtribute(attribute.index, attribute.components, attribute.dataType, attribute.normalized, attribute.data);
+        }
+        if (indices != null) {
+            builder.setIndices(indices);
+        }
+        if (positionAttributeIndex >= 0) {
+            builder.setPositionAttribute(positionAttributeIndex);
+        }
+        return builder.setVertexCount(vertexCount).setPrimitiveType(primitiveType);
+    }
+    
+    /**
+     * Writes the data added to the builder, deduplicated, optimized and quantized
+     * as the builder is set to do when building a geometry. The builder is then
+     * reset.
+     */
+    public static void write(File file, GeometryBuilder builder) throws IOException {
+        Buffer indexData = builder.prepare();
+        List<AttributeData> attributesData = builder.getAttributesData();
+        int vertexCount = builder.getVertexCount();
+        int attributeCount = attributesData.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + ATTRIBUTE_SIZE * attributeCount).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = align(header.capacity());
+        List<ByteBuffer> blobs = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < attributeCount; i++) {
+            AttributeData attribute = attributesData.get(i);
+            ByteBuffer blob = toBytes(attribute.buffer);
+            int size = VertexPacking.vertexSize(attribute.dataType, attribute.components) * vertexCount;
+            blob.limit(blob.position() + size);
+            int d = HEADER_SIZE + i * ATTRIBUTE_SIZE;
+            header.putInt(d, attribute.attributeIndex);
+            header.putInt(d + 4, attribute.components);
+            header.putInt(d + 8, attribute.dataType);
+            header.putInt(d + 12, attribute.normalized ? 1 : 0);
+            header.putLong(d + 16, offset);
+            header.putLong(d + 24, size);
+            blobs.add(blob);
+            offset = align(offset + size);
+        }
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, builder.getPrimitiveType());
+        header.putInt(12, vertexCount);
+        header.putInt(16, builder.getPositionAttributeIndex());
+        header.putInt(20, attributeCount);
+        if (indexData != null) {
+            ByteBuffer blob = toBytes(indexData);
+            header.putInt(24, indexData instanceof ShortBuffer ? GL4.GL_UNSIGNED_SHORT : GL4.GL_UNSIGNED_INT);
+            header.putInt(28, indexData.remaining());
+            header.putLong(32, offset);
+            header.putLong(40, blob.remaining());
+            blobs.add(blob);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            long position = 0;
+            position += writeFully(channel, header, position);
+            for (ByteBuffer blob : blobs) {
+                position = align(position);
+                position += writeFully(channel, blob, position);
+            }
+        } finally {
+            channel.close();
+            builder.reset();
+        }
+    }
+    
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+    
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return size;
+    }
+    
+    /**
+     * Returns the bytes of the buffer, in little-endian order. The buffers of
+     * the builder are in native order, which is checked to be little-endian.
+     */
+    private static ByteBuffer toBytes(Buffer buffer) {
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            throw new UnsupportedOperationException("Mesh files are only written on little-endian platforms");
+        }
+        if (buffer instanceof ByteBuffer) {
+            return ((ByteBuffer) buffer).duplicate();
+        }
+        int elementSize = buffer instanceof ShortBuffer ? 2 : 4;
+        ByteBuffer bytes = ByteBuffer.allocate(elementSize * buffer.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer instanceof FloatBuffer) {
+            bytes.asFloatBuffer().put(((FloatBuffer) buffer).duplicate());
+        } else if (buffer instanceof ShortBuffer) {
+            bytes.asShortBuffer().put(((ShortBuffer) buffer).duplicate());
+        } else {
+            bytes.asIntBuffer().put(((IntBuffer) buffer).duplicate());
+        }
+        return bytes;
+    }
+    
+    /**
+     * Converts meshes to the binary format, or prints the content of a mesh file:
+     * <pre>
+     * MeshFile info &lt;file&gt;
+     * MeshFile cube &lt;file&gt;   writes the cube of Tutorial05
+     * MeshFile convert &lt;obj or ply file&gt; &lt;file&gt;
+     * </pre>
+     * Converted meshes keep their positions and normals, the normals being
+     * packed in GL_INT_2_10_10_10_REV, and are optimized.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("info")) {
+            long start = System.nanoTime();
+            MeshFile mesh = read(new File(args[1]));
+            long elapsed = System.nanoTime() - start;
+            System.out.println("primitive type: " + mesh.getPrimitiveType() + ", vertices: " + mesh.getVertexCount()
+                    + ", indices: " + (mesh.getIndices() == null ? 0 : mesh.getIndices().remaining())
+                    + ", mapped in " + elapsed / 1000 + " us");
+            for (Attribute attribute : mesh.getAttributes()) {
+                System.out.println("attribute " + attribute.index + ": " + attribute.components + " x 0x"
+                        + Integer.toHexString(attribute.dataType) + (attribute.normalized ? " normalized" : "")
+                        + ", " + attribute.data.capacity() + " bytes");
+            }
+        } else if (args.length == 2 && args[0].equals("cube")) {
+            GeometryBuilder builder = new GeometryBuilder()
+                    .addAtribute(Tutorial05.POSITION_ATTRIBUTE_INDEX, 3, GL4.GL_FLOAT, Tutorial05.cubeVertices)
+                    .addAtribute(Tutorial05.NORMAL_ATTRIBUTE_INDEX, 3, GL4.GL_INT_2_10_10_10_REV, Tutorial05.cubeNormals)
+                    .setPositionAttribute(Tutorial05.POSITION_ATTRIBUTE_INDEX)
+                    .setOptimize(true)
+                    .setPrimitiveType(GL4.GL_TRIANGLES)
+                    .setVertexCount(36);
+            write(new File(args[1]), builder);
+        } else if (args.length == 3 && args[0].equals("convert")) {
+            long start = System.nanoTime();
+            MeshImporter mesh = MeshImporter.read(new File(args[1]), ForkJoinPool.commonPool());
+            long imported = System.nanoTime();
+            GeometryBuilder builder = new GeometryBuilder()
+                    .addAtribute(Tutorial05.POSITION_ATTRIBUTE_INDEX, 3, GL4.GL_FLOAT, mesh.getPositions())
+                    .setPositionAttribute(Tutorial05.POSITION_ATTRIBUTE_INDEX)
+                    .setOptimize(true)
+                    .setPrimitiveType(mesh.getPrimitiveType())
+                    .setVertexCount(mesh.getVertexCount());
+            if (mesh.getNormals() != null) {
+                builder.addAtribute(Tutorial05.NORMAL_ATTRIBUTE_INDEX, 3, GL4.GL_INT_2_10_10_10_REV, mesh.getNormals());
+            }
+            if (mesh.getIndices() != null) {
+                builder.setIndices(mesh.getIndices());
+            }
+            // prepared first for the ACMR, the builder being reset by write
+            builder.prepare();
+            float acmrBefore = builder.getAcmrBefore();
+            float acmrAfter = builder.getAcmrAfter();
+            write(new File(args[2]), builder);
+            System.out.println("vertices: " + mesh.getVertexCount() + ", triangles: "
+                    + (mesh.getIndices() == null ? 0 : mesh.getIndices().length / 3)
+                    + ", imported in " + (imported - start) / 1000000 + " ms, written in "
+                    + (System.nanoTime() - imported) / 1000000 + " ms");
+            System.out.println("ACMR before: " + acmrBefore + ", after: " + acmrAfter);
+        } else {
+            System.out.println("usage: MeshFile info <file> | cube <file> | convert <obj or ply file> <file>");
+        }
+    }
+}
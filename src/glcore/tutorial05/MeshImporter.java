@@ -0,0 +1,1047 @@
+package glcore.tutorial05;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Reads Wavefront OBJ and PLY meshes into arrays ready for
+ * {@link GeometryBuilder#addAtribute(int, int, int, Object)}. The file is
+ * mapped and parsed byte by byte into growable primitive arrays, without
+ * creating a String or a boxed number per value. An OBJ file is split in
+ * chunks of whole lines parsed in parallel, then merged, the vertices being
+ * made of the distinct combinations of position, texture coordinates and normal
+ * used by the faces. The vertices of a binary PLY file, all of the same size,
+ * are decoded in parallel too, while its faces and ASCII PLY files are read
+ * in sequence. Polygons are split into triangle fans; the lines and points of
+ * OBJ files are ignored.
+ */
+public class MeshImporter {
+
+    // size of the chunks of an OBJ file, and of the vertex ranges of a PLY file, parsed by a task each
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    
+    // the powers of 10 exactly represented by a double
+    private static final double[] POWERS_OF_10 = new double[23];
+    static {
+        POWERS_OF_10[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_10.length; i++) {
+            POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10.0;
+        }
+    }
+    
+    // the PLY data types
+    private static final int CHAR = 0;
+    private static final int UCHAR = 1;
+    private static final int SHORT = 2;
+    private static final int USHORT = 3;
+    private static final int INT = 4;
+    private static final int UINT = 5;
+    private static final int FLOAT = 6;
+    private static final int DOUBLE = 7;
+    private static final int[] TYPE_SIZES = { 1, 1, 2, 2, 4, 4, 4, 8 };
+    
+    // where the vertex properties go, in the positions, normals, texture coordinates then colors
+    private static final String[][] VERTEX_PROPERTIES = {
+        { "x" }, { "y" }, { "z" },
+        { "nx" }, { "ny" }, { "nz" },
+        { "u", "s", "texture_u", "texture_s" }, { "v", "t", "texture_v", "texture_t" },
+        { "red" }, { "green" }, { "blue" }, { "alpha" }
+    };
+    
+    private final int vertexCount;
+    private final float[] positions;
+    // null when the mesh has no normals, texture coordinates or colors
+    private final float[] normals;
+    private final float[] texCoords;
+    private final byte[] colors;
+    // null when the mesh has no faces
+    private final int[] indices;
+    
+    private MeshImporter(int vertexCount, float[] positions, float[] normals, float[] texCoords, byte[] colors, int[] indices) {
+        this.vertexCount = vertexCount;
+        this.positions = positions;
+        this.normals = normals;
+        this.texCoords = texCoords;
+        this.colors = colors;
+        this.indices = indices;
+    }
+    
+    public int getVertexCount() {
+        return vertexCount;
+    }
+    
+    /**
+     * Returns GL_TRIANGLES, or GL_POINTS when the mesh has no faces.
+     */
+    public int getPrimitiveType() {
+        return indices == null ? GL4.GL_POINTS : GL4.GL_TRIANGLES;
+    }
+    
+    /**
+     * Returns the positions, 3 floats per vertex.
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+    
+    /**
+     * Returns the normals, 3 floats per vertex, or null.
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+    
+    /**
+     * Returns the texture coordinates, 2 floats per vertex, or null.
+     */
+    public float[] getTexCoords() {
+        return texCoords;
+    }
+    
+    /**
+     * Returns the colors, 4 unsigned bytes per vertex, or null.
+     */
+    public byte[] getColors() {
+        return colors;
+    }
+    
+    public int[] getIndices() {
+        return indices;
+    }
+    
+    /**
+     * Adds the positions, the normals if the mesh has some and normalAttributeIndex
+     * is not -1, and the indices to the builder.
+     */
+    public GeometryBuilder addTo(GeometryBuilder builder, int positionAttributeIndex, int normalAttributeIndex) {
+        builder.addAtribute(positionAttributeIndex, 3, GL4.GL_FLOAT, positions)
+               .setPositionAttribute(positionAttributeIndex);
+        if (normals != null && normalAttributeIndex >= 0) {
+            builder.addAtribute(normalAttributeIndex, 3, GL4.GL_FLOAT, normals);
+        }
+        if (indices != null) {
+            builder.setIndices(indices);
+        }
+        return builder.setVertexCount(vertexCount).setPrimitiveType(getPrimitiveType());
+    }
+    
+    /**
+     * Reads an OBJ or PLY file, depending on its extension.
+     */
+    public static MeshImporter read(File file, ForkJoinPool pool) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".obj")) {
+            return readObj(map(file), pool);
+        } else if (name.endsWith(".ply")) {
+            return readPly(map(file), pool);
+        }
+        throw new IOException("Unknown mesh format: " + file);
+    }
+    
+    private static ByteBuffer map(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Mesh file too large to be mapped: " + file);
+            }
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Reads an OBJ mesh from the position to the limit of the buffer.
+     */
+    public static MeshImporter readObj(ByteBuffer data, ForkJoinPool pool) throws IOException {
+        return readObj(data, pool, CHUNK_SIZE);
+    }
+    
+    /**
+     * Reads an OBJ mesh in chunks of about chunkSize bytes.
+     */
+    static MeshImporter readObj(ByteBuffer data, ForkJoinPool pool, int chunkSize) throws IOException {
+        List<ObjChunk> chunks = new ArrayList<ObjChunk>();
+        int start = data.position();
+        while (start < data.limit()) {
+            int end = Math.min(start + chunkSize, data.limit());
+            // a chunk ends after a line feed, lines never being split
+            while (end < data.limit() && data.get(end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(new ObjChunk(data, start, end));
+            start = end;
+        }
+        try {
+            pool.invoke(new ObjTask(chunks, 0, chunks.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return mergeObj(chunks);
+    }
+    
+    /**
+     * Parses the values of a text file, the position being kept in pos and a
+     * line ending at a line feed or at the end.
+     */
+    private static class TextReader {
+        final ByteBuffer data;
+        final int end;
+        int pos;
+    
+        TextReader(ByteBuffer data, int start, int end) {
+            this.data = data;
+            this.pos = start;
+            this.end = end;
+        }
+    
+        void skipBlanks() {
+            while (pos < end) {
+                byte c = data.get(pos);
+                if (c != ' ' && c != '\t' && c != '\r') {
+                    break;
+                }
+                pos++;
+            }
+        }
+    
+        boolean atLineEnd() {
+            skipBlanks();
+            return pos >= end || data.get(pos) == '\n';
+        }
+    
+        void nextLine() {
+            while (pos < end && data.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+    
+        boolean isDigit() {
+            if (pos >= end) {
+                return false;
+            }
+            byte c = data.get(pos);
+            return c >= '0' && c <= '9';
+        }
+    
+        int parseInt() {
+            skipBlanks();
+            boolean negative = pos < end && data.get(pos) == '-';
+            if (negative || pos < end && data.get(pos) == '+') {
+                pos++;
+            }
+            if (!isDigit()) {
+                throw error("integer expected");
+            }
+            long value = 0;
+            while (isDigit()) {
+                value = value * 10 + data.get(pos++) - '0';
+                if (value > Integer.MAX_VALUE) {
+                    throw error("integer too large");
+                }
+            }
+            return (int) (negative ? -value : value);
+        }
+    
+        /**
+         * Parses a decimal number, keeping the first 18 significant digits in a
+         * long and scaling it by a power of 10.
+         */
+        double parseDouble() {
+            skipBlanks();
+            boolean negative = pos < end && data.get(pos) == '-';
+            if (negative || pos < end && data.get(pos) == '+') {
+                pos++;
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            boolean digits = false;
+            while (isDigit()) {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = mantissa * 10 + data.get(pos) - '0';
+                } else {
+                    exponent++;
+                }
+                pos++;
+                digits = true;
+            }
+            if (pos < end && data.get(pos) == '.') {
+                pos++;
+                while (isDigit()) {
+                    if (mantissa < 100000000000000000L) {
+                        mantissa = mantissa * 10 + data.get(pos) - '0';
+                        exponent--;
+                    }
+                    pos++;
+                    digits = true;
+                }
+            }
+            if (!digits) {
+                throw error("number expected");
+            }
+            if (pos < end && (data.get(pos) == 'e' || data.get(pos) == 'E')) {
+                pos++;
+                exponent += parseInt();
+            }
+            double value = mantissa;
+            if (exponent < 0) {
+                value = exponent >= -22 ? value / POWERS_OF_10[-exponent] : value / Math.pow(10, -exponent);
+            } else if (exponent > 0) {
+                value = exponent <= 22 ? value * POWERS_OF_10[exponent] : value * Math.pow(10, exponent);
+            }
+            return negative ? -value : value;
+        }
+    
+        float parseFloat() {
+            return (float) parseDouble();
+        }
+    
+        UncheckedIOException error(String message) {
+            return new UncheckedIOException(new IOException("Malformed mesh at byte " + pos + ": " + message));
+        }
+    }
+    
+    /**
+     * The content of a part of an OBJ file. The corners of the triangles are
+     * kept as triples of position, texture coordinates and normal indices, 0
+     * when absent. Absolute indices are kept as they are, 1-based and global,
+     * while relative ones, which depend on the number of elements read before
+     * the chunk, are kept as signed offsets from the first element of the chunk,
+     * negative when they refer to an element of a previous chunk, and flagged in
+     * the relative bits of the corner until merged.
+     */
+    private static class ObjChunk extends TextReader {
+        final FloatArray positions = new FloatArray();
+        final FloatArray texCoords = new FloatArray();
+        final FloatArray normals = new FloatArray();
+        final IntArray corners = new IntArray();
+        // per corner, bit 0, 1 or 2 set when its position, texture coordinates or normal index is relative
+        final IntArray relative = new IntArray();
+        // the corners of the face being read, its first one then the previous one, and their relative bits
+        final int[] fan = new int[6];
+        final int[] fanRelative = new int[2];
+        private int relativeBits;
+    
+        ObjChunk(ByteBuffer data, int start, int end) {
+            super(data, start, end);
+        }
+    
+        void parse() {
+            while (pos < end) {
+                skipBlanks();
+                if (pos + 1 < end && data.get(pos) == 'v') {
+                    byte c = data.get(pos + 1);
+                    if (c == ' ' || c == '\t') {
+                        pos += 1;
+                        positions.add(parseFloat());
+                        positions.add(parseFloat());
+                        positions.add(parseFloat());
+                    } else if (c == 't') {
+                        pos += 2;
+                        texCoords.add(parseFloat());
+                        texCoords.add(atLineEnd() ? 0.0f : parseFloat());
+                    } else if (c == 'n') {
+                        pos += 2;
+                        normals.add(parseFloat());
+                        normals.add(parseFloat());
+                        normals.add(parseFloat());
+                    }
+                } else if (pos + 1 < end && data.get(pos) == 'f') {
+                    pos += 1;
+                    parseFace();
+                }
+                nextLine();
+            }
+        }
+    
+        private void parseFace() {
+            int count = 0;
+            while (!atLineEnd()) {
+                relativeBits = 0;
+                int v = parseInt();
+                if (v == 0) {
+                    throw error("face without position");
+                }
+                v = index(v, positions.size / 3, 1);
+                int t = 0;
+                int n = 0;
+                if (pos < end && data.get(pos) == '/') {
+                    pos++;
+                    if (isDigit() || pos < end && data.get(pos) == '-') {
+                        t = index(parseInt(), texCoords.size / 2, 2);
+                    }
+                    if (pos < end && data.get(pos) == '/') {
+                        pos++;
+                        n = index(parseInt(), normals.size / 3, 4);
+                    }
+                }
+                if (count == 0) {
+                    fan[0] = v;
+                    fan[1] = t;
+                    fan[2] = n;
+                    fanRelative[0] = relativeBits;
+                } else if (count >= 2) {
+                    relative.add(fanRelative[0]);
+                    relative.add(fanRelative[1]);
+                    relative.add(relativeBits);
+                    corners.add(fan[0]);
+                    corners.add(fan[1]);
+                    corners.add(fan[2]);
+                    corners.add(fan[3]);
+                    corners.add(fan[4]);
+                    corners.add(fan[5]);
+                    corners.add(v);
+                    corners.add(t);
+                    corners.add(n);
+                }
+                fan[3] = v;
+                fan[4] = t;
+                fan[5] = n;
+                fanRelative[1] = relativeBits;
+                count++;
+            }
+            if (count < 3) {
+                throw error("face with less than 3 corners");
+            }
+        }
+    
+        /**
+         * Returns the index as it is when absolute, or as an offset from the first
+         * element of the chunk when relative, setting the bit in the relative bits
+         * of the corner.
+         */
+        private int index(int index, int count, int bit) {
+            if (index >= 0) {
+                return index;
+            }
+            relativeBits |= bit;
+            return count + index;
+        }
+    }
+    
+    private static class ObjTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<ObjChunk> chunks;
+        private final int from;
+        private final int to;
+    
+        ObjTask(List<ObjChunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+    
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                chunks.get(from).parse();
+            } else if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ObjTask(chunks, from, middle), new ObjTask(chunks, middle, to));
+            }
+        }
+    }
+    
+    /**
+     * Concatenates the elements of the chunks and makes a vertex of each
+     * distinct triple of indices used by the corners.
+     */
+    private static MeshImporter mergeObj(List<ObjChunk> chunks) throws IOException {
+        FloatArray allPositions = new FloatArray();
+        FloatArray allTexCoords = new FloatArray();
+        FloatArray allNormals = new FloatArray();
+        IntArray allCorners = new IntArray();
+        for (ObjChunk chunk : chunks) {
+            int positionBase = allPositions.size / 3;
+            int texCoordBase = allTexCoords.size / 2;
+            int normalBase = allNormals.size / 3;
+            allPositions.addAll(chunk.positions);
+            allTexCoords.addAll(chunk.texCoords);
+            allNormals.addAll(chunk.normals);
+            int[] corners = chunk.corners.data;
+            int[] relative = chunk.relative.data;
+            for (int i = 0; i < chunk.corners.size; i += 3) {
+                // 0-based global indices, -1 when absent
+                int bits = relative[i / 3];
+                allCorners.add(resolve(corners[i], (bits & 1) != 0, positionBase));
+                allCorners.add(resolve(corners[i + 1], (bits & 2) != 0, texCoordBase));
+                allCorners.add(resolve(corners[i + 2], (bits & 4) != 0, normalBase));
+            }
+        }
+        int positionCount = allPositions.size / 3;
+        int texCoordCount = allTexCoords.size / 2;
+        int normalCount = allNormals.size / 3;
+        int cornerCount = allCorners.size / 3;
+        if (cornerCount == 0) {
+            return new MeshImporter(positionCount, allPositions.toArray(), null, null, null, null);
+        }
+        int[] corners = allCorners.data;
+        boolean hasTexCoords = false;
+        boolean hasNormals = false;
+        for (int i = 0; i < allCorners.size; i += 3) {
+            if (corners[i] < 0 || corners[i] >= positionCount || corners[i + 1] >= texCoordCount || corners[i + 2] >= normalCount) {
+                throw new IOException("Malformed mesh: index out of range in face " + i / 9);
+            }
+            hasTexCoords |= corners[i + 1] >= 0;
+            hasNormals |= corners[i + 2] >= 0;
+        }
+        int[] indices = new int[cornerCount];
+        if (!hasTexCoords && !hasNormals) {
+            // the positions are the vertices
+            for (int i = 0; i < cornerCount; i++) {
+                indices[i] = corners[3 * i];
+            }
+            return new MeshImporter(positionCount, allPositions.toArray(), null, null, null, indices);
+        }
+        // open addressing table of the vertices, keyed by their triple of indices
+        int capacity = Integer.highestOneBit(Math.max(cornerCount, 8) * 2 - 1) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        IntArray triples = new IntArray();
+        for (int i = 0; i < cornerCount; i++) {
+            int v = corners[3 * i];
+            int t = corners[3 * i + 1];
+            int n = corners[3 * i + 2];
+            int hash = (v * 0x9e3779b1 + t) * 0x85ebca6b + n;
+            int slot = (hash ^ hash >>> 15) & (capacity - 1);
+            while (table[slot] >= 0) {
+                int existing = 3 * table[slot];
+                if (triples.data[existing] == v && triples.data[existing + 1] == t && triples.data[existing + 2] == n) {
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (table[slot] < 0) {
+                table[slot] = triples.size / 3;
+                triples.add(v);
+                triples.add(t);
+                triples.add(n);
+            }
+            indices[i] = table[slot];
+        }
+        int vertexCount = triples.size / 3;
+        float[] positions = new float[3 * vertexCount];
+        float[] texCoords = hasTexCoords ? new float[2 * vertexCount] : null;
+        float[] normals = hasNormals ? new float[3 * vertexCount] : null;
+        for (int i = 0; i < vertexCount; i++) {
+            System.arraycopy(allPositions.data, 3 * triples.data[3 * i], positions, 3 * i, 3);
+            if (hasTexCoords && triples.data[3 * i + 1] >= 0) {
+                System.arraycopy(allTexCoords.data, 2 * triples.data[3 * i + 1], texCoords, 2 * i, 2);
+            }
+            if (hasNormals && triples.data[3 * i + 2] >= 0) {
+                System.arraycopy(allNormals.data, 3 * triples.data[3 * i + 2], normals, 3 * i, 3);
+            }
+        }
+        return new MeshImporter(vertexCount, positions, normals, texCoords, null, indices);
+    }
+    
+    /**
+     * Returns the 0-based global index of an absolute index, or of a relative one
+     * given the number of elements before its chunk, -1 when absent.
+     */
+    private static int resolve(int index, boolean relative, int base) throws IOException {
+        if (!relative) {
+            return index - 1;
+        }
+        if (base + index < 0) {
+            throw new IOException("Malformed mesh: relative index before the first element");
+        }
+        return base + index;
+    }
+    
+    private static class PlyProperty {
+        int type;
+        // the type of the count of a list, -1 for a single value
+        int countType = -1;
+        // the component of the vertex it goes to, or 0 for the indices of a face, -1 when ignored
+        int target = -1;
+    }
+    
+    private static class PlyElement {
+        String name;
+        int count;
+        final List<PlyProperty> properties = new ArrayList<PlyProperty>();
+    }
+    
+    /**
+     * Reads a PLY mesh, ASCII or binary, from the position to the limit of the
+     * buffer. Its vertex element provides the positions, and the normals,
+     * texture coordinates and colors if it has their properties, while the
+     * vertex_indices or vertex_index list of its face element provides the
+     * indices. The other elements and properties are ignored.
+     */
+    public static MeshImporter readPly(ByteBuffer data, ForkJoinPool pool) throws IOException {
+        TextReader reader = new TextReader(data, data.position(), data.limit());
+        String format = null;
+        List<PlyElement> elements = new ArrayList<PlyElement>();
+        for (String line = headerLine(reader); !line.equals("end_header"); line = headerLine(reader)) {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty() || elements.isEmpty() && format == null && words[0].equals("ply")) {
+                continue;
+            } else if (words[0].equals("format") && words.length >= 2) {
+                format = words[1];
+            } else if (words[0].equals("element") && words.length == 3) {
+                PlyElement element = new PlyElement();
+                element.name = words[1];
+                element.count = Integer.parseInt(words[2]);
+                elements.add(element);
+            } else if (words[0].equals("property") && !elements.isEmpty()) {
+                PlyElement element = elements.get(elements.size() - 1);
+                PlyProperty property = new PlyProperty();
+                String name;
+                if (words[1].equals("list") && words.length == 5) {
+                    property.countType = plyType(words[2]);
+                    property.type = plyType(words[3]);
+                    name = words[4];
+                    if (element.name.equals("face") && (name.equals("vertex_indices") || name.equals("vertex_index"))) {
+                        property.target = 0;
+                    }
+                } else if (words.length == 3) {
+                    property.type = plyType(words[1]);
+                    name = words[2];
+                    if (element.name.equals("vertex")) {
+                        property.target = vertexTarget(name);
+                    }
+                } else {
+                    throw new IOException("Malformed PLY property: " + line);
+                }
+                element.properties.add(property);
+            } else if (!words[0].equals("comment") && !words[0].equals("obj_info")) {
+                throw new IOException("Malformed PLY header line: " + line);
+            }
+        }
+        ByteOrder order;
+        if ("binary_little_endian".equals(format)) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if ("binary_big_endian".equals(format)) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if ("ascii".equals(format)) {
+            order = null;
+        } else {
+            throw new IOException("Unknown PLY format: " + format);
+        }
+        ByteBuffer body = order == null ? null : data.duplicate().order(order);
+        PlyVertices vertices = null;
+        IntArray indices = null;
+        int pos = reader.pos;
+        try {
+            for (PlyElement element : elements) {
+                if (element.name.equals("vertex")) {
+                    vertices = new PlyVertices(element);
+                    if (order == null) {
+                        reader.pos = pos;
+                        vertices.readAscii(reader, 0, element.count);
+                        pos = reader.pos;
+                    } else {
+                        pos = vertices.readBinary(body, pos, pool);
+                    }
+                } else if (element.name.equals("face")) {
+                    indices = new IntArray();
+                    if (order == null) {
+                        reader.pos = pos;
+                        readAsciiFaces(reader, element, indices);
+                        pos = reader.pos;
+                    } else {
+                        pos = readBinaryFaces(body, pos, element, indices);
+                    }
+                } else if (order == null) {
+                    reader.pos = pos;
+                    for (int i = 0; i < element.count; i++) {
+                        reader.nextLine();
+                    }
+                    pos = reader.pos;
+                } else {
+                    pos = readBinaryFaces(body, pos, element, null);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated PLY mesh");
+        }
+        if (vertices == null || !vertices.hasPositions) {
+            throw new IOException("PLY mesh without vertex positions");
+        }
+        int[] faces = indices == null ? null : indices.toArray();
+        if (faces != null) {
+            for (int index : faces) {
+                if (index < 0 || index >= vertices.count) {
+                    throw new IOException("Malformed mesh: index out of range " + index);
+                }
+            }
+        }
+        return new MeshImporter(vertices.count, vertices.positions, vertices.normals, vertices.texCoords, vertices.colors, faces);
+    }
+    
+    private static String headerLine(TextReader reader) throws IOException {
+        int start = reader.pos;
+        reader.nextLine();
+        if (reader.pos > reader.end) {
+            throw new IOException("PLY header without end_header");
+        }
+        return StandardCharsets.US_ASCII.decode(reader.data.duplicate().limit(reader.pos - 1).position(start))
+                .toString().trim();
+    }
+    
+    private static int plyType(String name) throws IOException {
+        if (name.equals("char") || name.equals("int8")) return CHAR;
+        if (name.equals("uchar") || name.equals("uint8")) return UCHAR;
+        if (name.equals("short") || name.equals("int16")) return SHORT;
+        if (name.equals("ushort") || name.equals("uint16")) return USHORT;
+        if (name.equals("int") || name.equals("int32")) return INT;
+        if (name.equals("uint") || name.equals("uint32")) return UINT;
+        if (name.equals("float") || name.equals("float32")) return FLOAT;
+        if (name.equals("double") || name.equals("float64")) return DOUBLE;
+        throw new IOException("Unknown PLY type: " + name);
+    }
+    
+    private static int vertexTarget(String name) {
+        for (int i = 0; i < VERTEX_PROPERTIES.length; i++) {
+            for (String alias : VERTEX_PROPERTIES[i]) {
+                if (alias.equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    private static double readBinary(ByteBuffer data, int pos, int type) {
+        switch (type) {
+        case CHAR: return data.get(pos);
+        case UCHAR: return data.get(pos) & 0xff;
+        case SHORT: return data.getShort(pos);
+        case USHORT: return data.getShort(pos) & 0xffff;
+        case INT: return data.getInt(pos);
+        case UINT: return data.getInt(pos) & 0xffffffffL;
+        case FLOAT: return data.getFloat(pos);
+        default: return data.getDouble(pos);
+        }
+    }
+    
+    private static int readBinaryInt(ByteBuffer data, int pos, int type) {
+        switch (type) {
+        case CHAR: return data.get(pos);
+        case UCHAR: return data.get(pos) & 0xff;
+        case SHORT: return data.getShort(pos);
+        case USHORT: return data.getShort(pos) & 0xffff;
+        case INT: case UINT: return data.getInt(pos);
+        default: return (int) readBinary(data, pos, type);
+        }
+    }
+    
+    /**
+     * The vertex data of a PLY mesh, in arrays allocated once the properties
+     * are known.
+     */
+    private static class PlyVertices {
+        final PlyElement element;
+        final int count;
+        final boolean hasPositions;
+        final float[] positions;
+        final float[] normals;
+        final float[] texCoords;
+        final byte[] colors;
+        // whether the colors are integers or floats from 0 to 1
+        final boolean floatColors;
+    
+        PlyVertices(PlyElement element) {
+            this.element = element;
+            this.count = element.count;
+            boolean[] present = new boolean[VERTEX_PROPERTIES.length];
+            boolean floats = false;
+            for (PlyProperty property : element.properties) {
+                if (property.target >= 0 && property.countType < 0) {
+                    present[property.target] = true;
+                    floats |= property.target >= 8 && (property.type == FLOAT || property.type == DOUBLE);
+                }
+            }
+            hasPositions = present[0] && present[1] && present[2];
+            positions = new float[3 * count];
+            normals = present[3] || present[4] || present[5] ? new float[3 * count] : null;
+            texCoords = present[6] || present[7] ? new float[2 * count] : null;
+            colors = present[8] || present[9] || present[10] ? new byte[4 * count] : null;
+            floatColors = floats;
+            if (colors != null && !present[11]) {
+                for (int i = 3; i < colors.length; i += 4) {
+                    colors[i] = (byte) 255;
+                }
+            }
+        }
+    
+        void set(int vertex, int target, double value) {
+            if (target < 3) {
+                positions[3 * vertex + target] = (float) value;
+            } else if (target < 6) {
+                normals[3 * vertex + target - 3] = (float) value;
+            } else if (target < 8) {
+                texCoords[2 * vertex + target - 6] = (float) value;
+            } else {
+                long color = floatColors ? Math.round(value * 255.0) : (long) value;
+                colors[4 * vertex + target - 8] = (byte) Math.max(0, Math.min(255, color));
+            }
+        }
+    
+        void readAscii(TextReader reader, int from, int to) {
+            for (int v = from; v < to; v++) {
+                for (PlyProperty property : element.properties) {
+                    if (property.countType >= 0) {
+                        for (int n = reader.parseInt(); n > 0; n--) {
+                            reader.parseDouble();
+                        }
+                    } else {
+                        double value = reader.parseDouble();
+                        if (property.target >= 0) {
+                            set(v, property.target, value);
+                        }
+                    }
+                }
+                reader.nextLine();
+            }
+        }
+    
+        /**
+         * Decodes the vertices starting at pos, in ranges decoded in parallel,
+         * and returns the position after them. Vertices with list properties
+         * have no fixed size, so they are decoded in sequence, skipping the
+         * lists.
+         */
+        int readBinary(ByteBuffer data, int pos, ForkJoinPool pool) throws IOException {
+            int size = 0;
+            for (PlyProperty property : element.properties) {
+                if (property.countType >= 0) {
+                    return decodeWithLists(data, pos);
+                }
+                size += TYPE_SIZES[property.type];
+            }
+            if ((long) size * count > data.limit() - pos) {
+                throw new IOException("Truncated PLY mesh");
+            }
+            int chunkVertices = Math.max(1, CHUNK_SIZE / Math.max(size, 1));
+            pool.invoke(new PlyVertexTask(this, data, pos, size, 0, count, chunkVertices));
+            return pos + size * count;
+        }
+    
+        void decode(ByteBuffer data, int pos, int size, int from, int to) {
+            for (int v = from; v < to; v++) {
+                int p = pos + v * size;
+                for (PlyProperty property : element.properties) {
+                    if (property.target >= 0) {
+                        set(v, property.target, MeshImporter.readBinary(data, p, property.type));
+                    }
+                    p += TYPE_SIZES[property.type];
+                }
+            }
+        }
+    
+        int decodeWithLists(ByteBuffer data, int pos) throws IOException {
+            for (int v = 0; v < count; v++) {
+                for (PlyProperty property : element.properties) {
+                    if (property.countType >= 0) {
+                        int n = readBinaryInt(data, pos, property.countType);
+                        if (n < 0) {
+                            throw new IOException("Malformed mesh: negative PLY list count");
+                        }
+                        pos += TYPE_SIZES[property.countType] + n * TYPE_SIZES[property.type];
+                    } else {
+                        if (property.target >= 0) {
+                            set(v, property.target, MeshImporter.readBinary(data, pos, property.type));
+                        }
+                        pos += TYPE_SIZES[property.type];
+                    }
+                }
+            }
+            return pos;
+        }
+    }
+    
+    private static class PlyVertexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PlyVertices vertices;
+        private final ByteBuffer data;
+        private final int pos;
+        private final int size;
+        private final int from;
+        private final int to;
+        private final int chunkVertices;
+    
+        PlyVertexTask(PlyVertices vertices, ByteBuffer data, int pos, int size, int from, int to, int chunkVertices) {
+            this.vertices = vertices;
+            this.data = data;
+            this.pos = pos;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+            this.chunkVertices = chunkVertices;
+        }
+    
+        @Override
+        protected void compute() {
+            if (to - from <= chunkVertices) {
+                vertices.decode(data, pos, size, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PlyVertexTask(vertices, data, pos, size, from, middle, chunkVertices),
+                          new PlyVertexTask(vertices, data, pos, size, middle, to, chunkVertices));
+            }
+        }
+    }
+    
+    private static void readAsciiFaces(TextReader reader, PlyElement element, IntArray indices) {
+        for (int f = 0; f < element.count; f++) {
+            for (PlyProperty property : element.properties) {
+                if (property.countType < 0) {
+                    reader.parseDouble();
+                } else if (property.target != 0) {
+                    for (int n = reader.parseInt(); n > 0; n--) {
+                        reader.parseDouble();
+                    }
+                } else {
+                    int n = reader.parseInt();
+                    if (n < 3) {
+                        throw reader.error("face with less than 3 corners");
+                    }
+                    int first = reader.parseInt();
+                    int previous = reader.parseInt();
+                    for (int i = 2; i < n; i++) {
+                        int current = reader.parseInt();
+                        indices.add(first);
+                        indices.add(previous);
+                        indices.add(current);
+                        previous = current;
+                    }
+                }
+            }
+            reader.nextLine();
+        }
+    }
+    
+    /**
+     * Reads the faces starting at pos, or skips the items of another element
+     * when indices is null, and returns the position after them.
+     */
+    private static int readBinaryFaces(ByteBuffer data, int pos, PlyElement element, IntArray indices) throws IOException {
+        for (int f = 0; f < element.count; f++) {
+            for (PlyProperty property : element.properties) {
+                if (property.countType < 0) {
+                    pos += TYPE_SIZES[property.type];
+                    continue;
+                }
+                int n = readBinaryInt(data, pos, property.countType);
+                if (n < 0 || indices != null && property.target == 0 && n < 3) {
+                    throw new IOException("Malformed mesh at byte " + pos + ": "
+                            + (n < 0 ? "negative PLY list count" : "face with less than 3 corners"));
+                }
+                pos += TYPE_SIZES[property.countType];
+                int size = TYPE_SIZES[property.type];
+                if (indices != null && property.target == 0) {
+                    int first = readBinaryInt(data, pos, property.type);
+                    int previous = readBinaryInt(data, pos + size, property.type);
+                    for (int i = 2; i < n; i++) {
+                        int current = readBinaryInt(data, pos + i * size, property.type);
+                        indices.add(first);
+                        indices.add(previous);
+                        indices.add(current);
+                        previous = current;
+                    }
+                }
+                pos += n * size;
+            }
+        }
+        return pos;
+    }
+    
+    static class FloatArray {
+        float[] data = new float[64];
+        int size;
+    
+        void add(float value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+            data[size++] = value;
+        }
+    
+        void addAll(FloatArray array) {
+            if (size + array.size > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, size + array.size));
+            }
+            System.arraycopy(array.data, 0, data, size, array.size);
+            size += array.size;
+        }
+    
+        float[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+    
+    static class IntArray {
+        int[] data = new int[64];
+        int size;
+    
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+            data[size++] = value;
+        }
+    
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+    
+    /**
+     * Checks that an OBJ mesh whose faces refer to the vertices of the previous
+     * chunks with relative indices is read the same in small chunks as in one,
+     * the first face after each chunk boundary using relative indices.
+     */
+    public static void main(String[] args) throws IOException {
+        StringBuilder obj = new StringBuilder();
+        int quadCount = 1000;
+        for (int q = 0; q < quadCount; q++) {
+            obj.append("v ").append(q).append(" 0 0\n").append("v ").append(q).append(" 1 0\n");
+            obj.append("vn 0 0 1\n");
+            if (q > 0) {
+                // the 4 last positions, 2 of them written before the previous face
+                obj.append("f -4//-1 -2//-1 -1//-1 -3//-1\n");
+            }
+        }
+        ByteBuffer data = ByteBuffer.wrap(obj.toString().getBytes(StandardCharsets.US_ASCII));
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        MeshImporter whole = readObj(data, pool, data.limit());
+        // one line per chunk or so, so that every face starts just after a boundary
+        MeshImporter chunked = readObj(data, pool, 16);
+        if (whole.getVertexCount() != chunked.getVertexCount()
+                || !Arrays.equals(whole.getIndices(), chunked.getIndices())
+                || !Arrays.equals(whole.getPositions(), chunked.getPositions())
+                || !Arrays.equals(whole.getNormals(), chunked.getNormals())) {
+            throw new IllegalStateException("OBJ mesh read differently in chunks");
+        }
+        float[] positions = chunked.getPositions();
+        int[] indices = chunked.getIndices();
+        for (int q = 1; q < quadCount; q++) {
+            // the first corner of the face of quad q is the bottom vertex of quad q - 1
+            if (positions[3 * indices[6 * (q - 1)]] != q - 1) {
+                throw new IllegalStateException("Relative index resolved to the wrong vertex in face " + q);
+            }
+        }
+        System.out.println("triangles: " + indices.length / 3 + ", vertices: " + chunked.getVertexCount() + ", chunked read ok");
+    }
+
+}
@@ -0,0 +1,232 @@
+package glcore.tutorial05;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Loads geometries in the background. The CPU work, reading the mesh and
+ * deduplicating, optimizing, quantizing and interleaving its vertices, runs on
+ * worker threads, which hand over the packed builders to the GL thread. There,
+ * {@link #upload(GL4, long, long)}, called once per frame, builds the loaded
+ * geometries until a budget of bytes or time is spent, the remaining ones
+ * waiting for the next frames, so that loading does not make a frame miss its
+ * deadline. The futures returned by the load methods complete on the GL thread,
+ * where their dependent actions can use the geometry.
+ */
+public class MeshLoader {
+
+    /**
+     * Sets the options of the builder of a mesh file, such as its arena or
+     * whether it is optimized.
+     */
+    public interface Setup {
+        void configure(GeometryBuilder builder);
+    }
+    
+    private static class Loaded {
+        final GeometryBuilder builder;
+        final CompletableFuture<Geometry> future;
+        final long size;
+        
+        Loaded(GeometryBuilder builder, CompletableFuture<Geometry> future) {
+            this.builder = builder;
+            this.future = future;
+            this.size = builder.getUploadSize();
+        }
+    }
+    
+    private final ExecutorService workers;
+    private final boolean ownsWorkers;
+    private final ConcurrentLinkedQueue<Loaded> loaded = new ConcurrentLinkedQueue<Loaded>();
+    private final AtomicInteger loadingCount = new AtomicInteger();
+    // set by shutdown, guarded by the lock of loaded like the additions to it
+    private boolean closed;
+    private long uploadedBytes;
+    
+    public MeshLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Creates a loader with its own pool of threadCount daemon threads.
+     */
+    public MeshLoader(int threadCount) {
+        this(Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mesh-loader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+    
+    /**
+     * Creates a loader running on the given workers, left running by
+     * {@link #shutdown()}.
+     */
+    public MeshLoader(ExecutorService workers) {
+        this(workers, false);
+    }
+    
+    private MeshLoader(ExecutorService workers, boolean ownsWorkers) {
+        this.workers = workers;
+        this.ownsWorkers = ownsWorkers;
+    }
+    
+    /**
+     * Runs the task on a worker, then packs the builder it returns, which must
+     * not be used afterwards. The builder is reset if packing it fails or the
+     * loader is shut down meanwhile, and the future completed exceptionally.
+     */
+    public CompletableFuture<Geometry> load(final Callable<GeometryBuilder> task) {
+        final CompletableFuture<Geometry> future = new CompletableFuture<Geometry>();
+        synchronized (loaded) {
+            if (closed) {
+                future.completeExceptionally(new RejectedExecutionException("Loader shut down"));
+                return future;
+            }
+        }
+        loadingCount.incrementAndGet();
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    GeometryBuilder builder = null;
+                    try {
+                        if (!future.isDone()) {
+                            builder = task.call();
+                            builder.pack();
+                            Loaded next = new Loaded(builder, future);
+                            synchronized (loaded) {
+                                if (!closed) {
+                                    loaded.add(next);
+                                    return;
+                                }
+                            }
+                            builder.reset();
+                            future.cancel(false);
+                        }
+                    } catch (Throwable e) {
+                        if (builder != null) {
+                            builder.reset();
+                        }
+                        future.completeExceptionally(e);
+                    } finally {
+                        loadingCount.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loadingCount.decrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    /**
+     * Loads a mesh file, the builder then being configured by the setup, which
+     * can be null, before it is packed.
+     */
+    public CompletableFuture<Geometry> load(final File file, final Setup setup) {
+        return load(new Callable<GeometryBuilder>() {
+            public GeometryBuilder call() throws Exception {
+                GeometryBuilder builder = MeshFile.read(file).load().addTo(new GeometryBuilder());
+                if (setup != null) {
+                    setup.configure(builder);
+                }
+                return builder;
+            }
+        });
+    }
+    
+    /**
+     * Builds the loaded geometries, in the order they were loaded, until
+     * byteBudget bytes were uploaded or nanoBudget nanoseconds spent, and
+     * returns how many were built. A geometry is only built if it fits in the
+     * remaining bytes, but the first one is always built so that a geometry
+     * larger than the budget is not stuck. Must be called on the GL thread.
+     */
+    public int upload(GL4 gl4, long byteBudget, long nanoBudget) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        int count = 0;
+        Loaded next;
+        while ((next = loaded.peek()) != null) {
+            if (count > 0 && (bytes + next.size > byteBudget || System.nanoTime() - start >= nanoBudget)) {
+                break;
+            }
+            loaded.poll();
+            if (next.future.isDone()) {
+                // cancelled while loading
+                next.builder.reset();
+                continue;
+            }
+            Geometry geometry;
+            try {
+                geometry = next.builder.build(gl4);
+            } catch (RuntimeException e) {
+                next.builder.reset();
+                next.future.completeExceptionally(e);
+                continue;
+            }
+            bytes += next.size;
+            count++;
+            if (!next.future.complete(geometry)) {
+                geometry.dispose(gl4);
+            }
+        }
+        uploadedBytes += bytes;
+        return count;
+    }
+    
+    /**
+     * Returns the number of geometries loading or waiting to be built.
+     */
+    public int getPendingCount() {
+        return loadingCount.get() + loaded.size();
+    }
+    
+    /**
+     * Returns the number of bytes waiting to be uploaded.
+     */
+    public long getPendingBytes() {
+        long bytes = 0;
+        for (Loaded next : loaded) {
+            bytes += next.size;
+        }
+        return bytes;
+    }
+    
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+    
+    /**
+     * Stops the loader's own workers and cancels the geometries not built yet,
+     * releasing their staging buffers. The geometries loaded afterwards by
+     * running workers are cancelled the same way, and new loads are rejected.
+     */
+    public void shutdown() {
+        synchronized (loaded) {
+            closed = true;
+        }
+        if (ownsWorkers) {
+            workers.shutdownNow();
+        }
+        Loaded next;
+        while ((next = loaded.poll()) != null) {
+            next.future.cancel(false);
+            next.builder.reset();
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package glcore.tutorial05;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Reorders the indices of triangle lists for the post-transform vertex cache
+ * with the Tipsify algorithm of Sander, Nehab and Barczak, and the vertices for
+ * fetch locality. The efficiency of the cache is measured by the average cache
+ * miss ratio (ACMR), the number of transformed vertices per triangle, which
+ * goes from 3 for a triangle soup down to about 0.5 for a regular grid.
+ */
+public class MeshOptimizer {
+
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Returns the average cache miss ratio of the triangle list with a FIFO
+     * cache of the given size.
+     */
+    public static float acmr(int[] indices, int cacheSize) {
+        if (indices.length == 0) {
+            return 0.0f;
+        }
+        int vertexCount = 0;
+        for (int index : indices) {
+            vertexCount = Math.max(vertexCount, index + 1);
+        }
+        // a vertex is in the cache if it missed less than cacheSize misses ago,
+        // the clock starts at cacheSize so that no vertex is in the cache at first
+        int[] stamps = new int[vertexCount];
+        int clock = cacheSize;
+        for (int index : indices) {
+            if (clock - stamps[index] >= cacheSize) {
+                stamps[index] = ++clock;
+            }
+        }
+        return 3.0f * (clock - cacheSize) / indices.length;
+    }
+
+    /**
+     * Returns the indices of the triangle list in an order making the best use
+     * of a vertex cache of the given size. When positions is not null, the
+     * clusters of triangles between the cache flushes are then sorted so that the
+     * clusters facing outward of the mesh come first, which reduces the overdraw
+     * of convex parts whatever the point of view.
+     */
+    public static int[] optimizeVertexCache(int[] indices, int vertexCount, int cacheSize, FloatBuffer positions) {
+        int triangleCount = indices.length / 3;
+
+        // triangles adjacent to each vertex, in compressed rows
+        int[] live = new int[vertexCount];
+        for (int index : indices) {
+            live[index]++;
+        }
+        int[] offsets = new int[vertexCount + 1];
+        int maxDegree = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v+1] = offsets[v] + live[v];
+            maxDegree = Math.max(maxDegree, live[v]);
+        }
+        int[] adjacency = new int[indices.length];
+        int[] fill = new int[vertexCount];
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            adjacency[offsets[v] + fill[v]++] = i / 3;
+        }
+
+        int[] result = new int[indices.length];
+        int[] clusters = new int[triangleCount + 1];
+        int clusterCount = 0;
+        boolean[] emitted = new boolean[triangleCount];
+        int[] cacheTimes = new int[vertexCount];
+        int[] deadEnd = new int[indices.length];
+        int deadEndSize = 0;
+        int[] candidates = new int[3 * maxDegree];
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int emittedCount = 0;
+        int fanning = -1;
+        while (true) {
+            if (fanning < 0) {
+                // dead end, restarts from a recently used vertex if possible
+                while (deadEndSize > 0 && fanning < 0) {
+                    int v = deadEnd[--deadEndSize];
+                    if (live[v] > 0) {
+                        fanning = v;
+                    }
+                }
+                while (cursor < vertexCount && fanning < 0) {
+                    if (live[cursor] > 0) {
+                        fanning = cursor;
+                    }
+                    cursor++;
+                }
+                if (fanning < 0) {
+                    break;
+                }
+                clusters[clusterCount++] = emittedCount;
+            }
+            int candidateCount = 0;
+            for (int a = offsets[fanning]; a < offsets[fanning+1]; a++) {
+                int t = adjacency[a];
+                if (emitted[t]) {
+                    continue;
+                }
+                emitted[t] = true;
+                for (int j = 0; j < 3; j++) {
+                    int v = indices[3*t+j];
+                    result[3*emittedCount+j] = v;
+                    deadEnd[deadEndSize++] = v;
+                    candidates[candidateCount++] = v;
+                    live[v]--;
+                    if (time - cacheTimes[v] > cacheSize) {
+                        cacheTimes[v] = time++;
+                    }
+                }
+                emittedCount++;
+            }
+            // the next fanning vertex is the oldest candidate still in the cache
+            // after emitting its remaining triangles
+            fanning = -1;
+            int bestPriority = -1;
+            for (int c = 0; c < candidateCount; c++) {
+                int v = candidates[c];
+                if (live[v] > 0) {
+                    int priority = 0;
+                    if (time - cacheTimes[v] + 2 * live[v] <= cacheSize) {
+                        priority = time - cacheTimes[v];
+                    }
+                    if (priority > bestPriority) {
+                        bestPriority = priority;
+                        fanning = v;
+                    }
+                }
+            }
+        }
+        clusters[clusterCount] = triangleCount;
+
+        if (positions == null || clusterCount < 2) {
+            return result;
+        }
+        return sortClusters(result, clusters, clusterCount, positions);
+    }
+
+    /**
+     * Sorts the clusters of triangles by decreasing distance of their plane to
+     * the centroid of the mesh.
+     */
+    private static int[] sortClusters(int[] indices, int[] clusters, int clusterCount, FloatBuffer positions) {
+        int start = positions.position();
+        float[] centroids = new float[3 * clusterCount];
+        float[] normals = new float[3 * clusterCount];
+        float mx = 0.0f, my = 0.0f, mz = 0.0f, area = 0.0f;
+        for (int c = 0; c < clusterCount; c++) {
+            float cx = 0.0f, cy = 0.0f, cz = 0.0f, nx = 0.0f, ny = 0.0f, nz = 0.0f, clusterArea = 0.0f;
+            for (int t = clusters[c]; t < clusters[c+1]; t++) {
+                int pa = start + 3 * indices[3*t];
+                int pb = start + 3 * indices[3*t+1];
+                int pc = start + 3 * indices[3*t+2];
+                float ax = positions.get(pa), ay = positions.get(pa+1), az = positions.get(pa+2);
+                float bx = positions.get(pb), by = positions.get(pb+1), bz = positions.get(pb+2);
+                float qx = positions.get(pc), qy = positions.get(pc+1), qz = positions.get(pc+2);
+                float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+                float e2x = qx - ax, e2y = qy - ay, e2z = qz - az;
+                // twice the area weighted normal
+                float tx = e1y * e2z - e1z * e2y, ty = e1z * e2x - e1x * e2z, tz = e1x * e2y - e1y * e2x;
+                float a = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+                nx += tx; ny += ty; nz += tz;
+                cx += (ax + bx + qx) * a; cy += (ay + by + qy) * a; cz += (az + bz + qz) * a;
+                clusterArea += 3.0f * a;
+            }
+            mx += cx; my += cy; mz += cz; area += clusterArea;
+            if (clusterArea > 0.0f) {
+                cx /= clusterArea; cy /= clusterArea; cz /= clusterArea;
+            }
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0.0f) {
+                nx /= length; ny /= length; nz /= length;
+            }
+            centroids[3*c] = cx; centroids[3*c+1] = cy; centroids[3*c+2] = cz;
+            normals[3*c] = nx; normals[3*c+1] = ny; normals[3*c+2] = nz;
+        }
+        if (area > 0.0f) {
+            mx /= area; my /= area; mz /= area;
+        }
+        final float[] keys = new float[clusterCount];
+        Integer[] order = new Integer[clusterCount];
+        for (int c = 0; c < clusterCount; c++) {
+            keys[c] = (centroids[3*c] - mx) * normals[3*c]
+                    + (centroids[3*c+1] - my) * normals[3*c+1]
+                    + (centroids[3*c+2] - mz) * normals[3*c+2];
+            order[c] = c;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer c1, Integer c2) {
+                return Float.compare(keys[c2], keys[c1]);
+            }
+        });
+        int[] result = new int[indices.length];
+        int position = 0;
+        for (int c : order) {
+            int length = 3 * (clusters[c+1] - clusters[c]);
+            System.arraycopy(indices, 3 * clusters[c], result, position, length);
+            position += length;
+        }
+        return result;
+    }
+
+    /**
+     * Renumbers the vertices in the order of their first use by the indices,
+     * which are rewritten in place, and returns the original vertex of each new
+     * vertex. The vertices not used by the indices are dropped.
+     */
+    public static int[] optimizeVertexFetch(int[] indices, int vertexCount) {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int[] order = new int[vertexCount];
+        int count = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            if (remap[v] < 0) {
+                order[count] = v;
+                remap[v] = count++;
+            }
+            indices[i] = remap[v];
+        }
+        return count == vertexCount ? order : Arrays.copyOf(order, count);
+    }
+
+    /**
+     * Returns the positions of the vertices of a size by size grid of quads.
+     */
+    static FloatBuffer gridPositions(int size) {
+        FloatBuffer positions = FloatBuffer.allocate(3 * (size + 1) * (size + 1));
+        for (int y = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++) {
+                positions.put(x).put(y).put(0.0f);
+            }
+        }
+        positions.flip();
+        return positions;
+    }
+
+    /**
+     * Returns the indices of the triangles of a size by size grid of quads, in
+     * a random order.
+     */
+    static int[] shuffledGridIndices(int size, long seed) {
+        int[] triangles = new int[2 * size * size];
+        for (int t = 0; t < triangles.length; t++) {
+            triangles[t] = t;
+        }
+        Random random = new Random(seed);
+        for (int t = triangles.length - 1; t > 0; t--) {
+            int other = random.nextInt(t + 1);
+            int swap = triangles[t];
+            triangles[t] = triangles[other];
+            triangles[other] = swap;
+        }
+        int[] indices = new int[3 * triangles.length];
+        for (int t = 0; t < triangles.length; t++) {
+            int quad = triangles[t] / 2;
+            int v = quad / size * (size + 1) + quad % size;
+            if (triangles[t] % 2 == 0) {
+                indices[3*t] = v; indices[3*t+1] = v + 1; indices[3*t+2] = v + size + 1;
+            } else {
+                indices[3*t] = v + 1; indices[3*t+1] = v + size + 2; indices[3*t+2] = v + size + 1;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Prints the ACMR of a grid of shuffled triangles before and after the
+     * optimization.
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        FloatBuffer positions = gridPositions(size);
+        int[] indices = shuffledGridIndices(size, 0);
+        long start = System.nanoTime();
+        int[] optimized = optimizeVertexCache(indices, positions.remaining() / 3, DEFAULT_CACHE_SIZE, positions);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("triangles: " + indices.length / 3);
+        System.out.println("ACMR before: " + acmr(indices, DEFAULT_CACHE_SIZE));
+        System.out.println("ACMR after: " + acmr(optimized, DEFAULT_CACHE_SIZE) + " (" + elapsed / 1000000 + " ms)");
+    }
+}
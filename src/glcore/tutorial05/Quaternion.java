@@ -0,0 +1,128 @@
+package glcore.tutorial05;
+
+/**
+ * A rotation stored as a unit quaternion. Composing and interpolating
+ * rotations this way is cheaper than with 4x4 matrices, the matrix being
+ * only produced once, with {@link #toMatrix(Matrix44)}, when it needs to be
+ * pushed on the stack. Like Matrix44, all operations write into an existing
+ * instance and never allocate.
+ */
+public class Quaternion {
+
+    private float x;
+    private float y;
+    private float z;
+    private float w = 1.0f;
+    
+    public static Quaternion identity() {
+        return new Quaternion();
+    }
+    
+    public static Quaternion rotate(float a, float x, float y, float z) {
+        return new Quaternion().setRotate(a, x, y, z);
+    }
+    
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    public float getZ() {
+        return z;
+    }
+
+    public float getW() {
+        return w;
+    }
+
+    public Quaternion set(float x, float y, float z, float w) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.w = w;
+        return this;
+    }
+    
+    public Quaternion set(Quaternion that) {
+        return set(that.x, that.y, that.z, that.w);
+    }
+    
+    public Quaternion setIdentity() {
+        return set(0.0f, 0.0f, 0.0f, 1.0f);
+    }
+    
+    /**
+     * Sets this quaternion to the rotation of a degrees around the (x, y, z) axis,
+     * which must be normalized, following the same convention as
+     * {@link Matrix44#rotate(float, float, float, float)}. The sine and cosine are
+     * computed with {@link FastTrig}.
+     */
+    public Quaternion setRotate(float a, float x, float y, float z) {
+        float s = FastTrig.sin(a * 0.5f);
+        return set(x * s, y * s, z * s, FastTrig.cos(a * 0.5f));
+    }
+    
+    /**
+     * Computes this * that, i.e. the rotation that applies that and then this,
+     * and stores the result in dest, which is returned. dest may be this or that.
+     */
+    public Quaternion multInto(Quaternion that, Quaternion dest) {
+        float x1 = x, y1 = y, z1 = z, w1 = w;
+        float x2 = that.x, y2 = that.y, z2 = that.z, w2 = that.w;
+        return dest.set(w1 * x2 + x1 * w2 + y1 * z2 - z1 * y2,
+                        w1 * y2 - x1 * z2 + y1 * w2 + z1 * x2,
+                        w1 * z2 + x1 * y2 - y1 * x2 + z1 * w2,
+                        w1 * w2 - x1 * x2 - y1 * y2 - z1 * z2);
+    }
+    
+    /**
+     * Interpolates along the shortest arc from this rotation (t = 0) to the
+     * given one (t = 1) and stores the result in dest, which is returned.
+     */
+    public Quaternion slerpInto(Quaternion to, float t, Quaternion dest) {
+        float tx = to.x, ty = to.y, tz = to.z, tw = to.w;
+        float dot = x * tx + y * ty + z * tz + w * tw;
+        if (dot < 0.0f) {
+            dot = -dot;
+            tx = -tx;
+            ty = -ty;
+            tz = -tz;
+            tw = -tw;
+        }
+        float s0;
+        float s1;
+        if (dot > 0.9995f) {
+            // the rotations are too close for the sine below, we interpolate linearly
+            s0 = 1.0f - t;
+            s1 = t;
+        } else {
+            double theta = Math.acos(dot);
+            double sinTheta = Math.sin(theta);
+            s0 = (float) (Math.sin((1.0f - t) * theta) / sinTheta);
+            s1 = (float) (Math.sin(t * theta) / sinTheta);
+        }
+        dest.set(s0 * x + s1 * tx, s0 * y + s1 * ty, s0 * z + s1 * tz, s0 * w + s1 * tw);
+        return dot > 0.9995f ? dest.normalize() : dest;
+    }
+    
+    public Quaternion normalize() {
+        float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+        return set(x / length, y / length, z / length, w / length);
+    }
+    
+    /**
+     * Stores the rotation matrix of this quaternion in dest, which is returned.
+     */
+    public Matrix44 toMatrix(Matrix44 dest) {
+        return dest.setRotate(this);
+    }
+    
+    @Override
+    public String toString() {
+        return "" + x + "\t" + y + "\t" + z + "\t" + w;
+    }
+    
+}
@@ -0,0 +1,183 @@
+package glcore.tutorial05;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A node of a scene graph, holding a transformation relative to its parent
+ * (the local matrix) and the resulting transformation relative to the root
+ * (the world matrix).
+ * <p>
+ * Changing a local matrix only flags the node, and its ancestors as having a
+ * dirty descendant. The world matrices are recomputed by {@link #update()} or
+ * {@link #update(ForkJoinPool)}, which only visit the branches that contain
+ * dirty nodes. The parallel version recursively splits the children of a node
+ * into fork-join tasks, until the subtrees left to a task are small enough to
+ * be updated sequentially. The graph must not be modified during an update.
+ */
+public class SceneNode {
+
+    // subtrees smaller than this are updated by the task that reaches them
+    private static final int PARALLEL_THRESHOLD = 1024;
+    
+    private final Matrix44 local = Matrix44.identity();
+    private final Matrix44 world = Matrix44.identity();
+    private final List<SceneNode> children = new ArrayList<SceneNode>();
+    private SceneNode parent;
+    private int subtreeSize = 1;
+    private boolean dirty = true;
+    private boolean dirtyDescendant;
+    
+    public SceneNode getParent() {
+        return parent;
+    }
+    
+    public List<SceneNode> getChildren() {
+        return children;
+    }
+    
+    public SceneNode addChild(SceneNode child) {
+        if (child.parent != null) {
+            throw new IllegalArgumentException("Node already has a parent");
+        }
+        child.parent = this;
+        child.dirty = true;
+        children.add(child);
+        for (SceneNode node = this; node != null; node = node.parent) {
+            node.subtreeSize += child.subtreeSize;
+        }
+        markDirtyDescendant();
+        return this;
+    }
+    
+    public Matrix44 getLocal() {
+        return local;
+    }
+    
+    public SceneNode setLocal(Matrix44 matrix) {
+        local.set(matrix);
+        return markDirty();
+    }
+    
+    /**
+     * Flags the local matrix as changed. Must be called after modifying the
+     * matrix returned by {@link #getLocal()} in place.
+     */
+    public SceneNode markDirty() {
+        dirty = true;
+        if (parent != null) {
+            parent.markDirtyDescendant();
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the world matrix, as computed by the last update.
+     */
+    public Matrix44 getWorld() {
+        return world;
+    }
+    
+    /**
+     * Recomputes the world matrices of the dirty nodes of this subtree, and of
+     * their descendants, on the calling thread.
+     */
+    public void update() {
+        update(parentWorld(), false);
+    }
+    
+    /**
+     * Same as {@link #update()}, but the subtrees are processed in parallel
+     * on the given pool.
+     */
+    public void update(ForkJoinPool pool) {
+        pool.invoke(new UpdateTask(Collections.singletonList(this), 0, 1, parentWorld(), false));
+    }
+    
+    private Matrix44 parentWorld() {
+        return parent == null ? null : parent.world;
+    }
+    
+    private void markDirtyDescendant() {
+        // ancestors of a flagged node are already flagged
+        for (SceneNode node = this; node != null && !node.dirtyDescendant; node = node.parent) {
+            node.dirtyDescendant = true;
+        }
+    }
+    
+    /**
+     * Updates the world matrix of this node if needed and returns whether it changed.
+     */
+    private boolean updateWorld(Matrix44 parentWorld, boolean parentChanged) {
+        boolean changed = dirty || parentChanged;
+        if (changed) {
+            if (parentWorld == null) {
+                world.set(local);
+            } else {
+                parentWorld.multInto(local, world);
+            }
+            dirty = false;
+        }
+        return changed;
+    }
+    
+    private void update(Matrix44 parentWorld, boolean parentChanged) {
+        boolean changed = updateWorld(parentWorld, parentChanged);
+        if (changed || dirtyDescendant) {
+            for (int i = 0; i < children.size(); i++) {
+                children.get(i).update(world, changed);
+            }
+            dirtyDescendant = false;
+        }
+    }
+    
+    /**
+     * Updates the subtrees rooted at the nodes between from and to in a list of siblings.
+     */
+    private static class UpdateTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final List<SceneNode> nodes;
+        private final int from;
+        private final int to;
+        private final Matrix44 parentWorld;
+        private final boolean parentChanged;
+        
+        UpdateTask(List<SceneNode> nodes, int from, int to, Matrix44 parentWorld, boolean parentChanged) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.parentWorld = parentWorld;
+            this.parentChanged = parentChanged;
+        }
+        
+        @Override
+        protected void compute() {
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                size += nodes.get(i).subtreeSize;
+            }
+            if (size < PARALLEL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    nodes.get(i).update(parentWorld, parentChanged);
+                }
+            } else if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new UpdateTask(nodes, from, middle, parentWorld, parentChanged),
+                          new UpdateTask(nodes, middle, to, parentWorld, parentChanged));
+            } else {
+                SceneNode node = nodes.get(from);
+                boolean changed = node.updateWorld(parentWorld, parentChanged);
+                if (changed || node.dirtyDescendant) {
+                    new UpdateTask(node.children, 0, node.children.size(), node.world, changed).compute();
+                    node.dirtyDescendant = false;
+                }
+            }
+        }
+    }
+    
+}
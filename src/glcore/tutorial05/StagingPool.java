@@ -0,0 +1,211 @@
+package glcore.tutorial05;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pool of direct buffers used to stage data before it is uploaded to the GPU.
+ * The buffers are sized in powers of 2 from 4 KB to 64 MB, a request being
+ * served by a released buffer of its size class when there is one, so that
+ * loading many meshes reuses the same native memory rather than allocating
+ * new direct buffers only freed when the garbage collector gets to them.
+ * Released buffers are kept up to a maximum total size; larger requests get a
+ * buffer of their exact size, never kept. The acquired buffers are only
+ * weakly referenced, so a buffer never released is freed by the garbage
+ * collector like any other and stops being counted in use. The pool can be
+ * used from several threads.
+ */
+public class StagingPool {
+
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 64 * 1024 * 1024;
+    
+    // the pool used by default by GeometryBuilder
+    public static final StagingPool SHARED = new StagingPool(DEFAULT_MAX_RETAINED_BYTES);
+    
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 26;
+    
+    private final long maxRetainedBytes;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<ByteBuffer>[] released = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private final Set<Acquired> inUse = new HashSet<Acquired>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    
+    private long inUseBytes;
+    private long retainedBytes;
+    private long peakBytes;
+    private long hitCount;
+    private long missCount;
+    
+    public StagingPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < released.length; i++) {
+            released[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+    
+    /**
+     * Returns a direct buffer in native order, with a limit of size bytes and
+     * a capacity of its size class, to be released once its content is uploaded.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        expunge();
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0 && !released[sizeClass].isEmpty()) {
+            buffer = released[sizeClass].pop();
+            retainedBytes -= buffer.capacity();
+            hitCount++;
+        } else {
+            int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_CLASS_SHIFT) : size;
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            missCount++;
+        }
+        inUse.add(new Acquired(buffer, collected));
+        inUseBytes += buffer.capacity();
+        peakBytes = Math.max(peakBytes, inUseBytes + retainedBytes);
+        buffer.clear().limit(size);
+        return buffer;
+    }
+    
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool. Neither
+     * the buffer nor its views must be used afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        expunge();
+        if (!inUse.remove(new Acquired(buffer, null))) {
+            throw new IllegalArgumentException("Buffer not acquired from this pool");
+        }
+        inUseBytes -= buffer.capacity();
+        int sizeClass = Integer.bitCount(buffer.capacity()) == 1 ? sizeClass(buffer.capacity()) : -1;
+        if (sizeClass >= 0 && retainedBytes + buffer.capacity() <= maxRetainedBytes) {
+            released[sizeClass].push(buffer);
+            retainedBytes += buffer.capacity();
+        }
+    }
+    
+    /**
+     * Drops the released buffers, their native memory being freed with them by
+     * the garbage collector.
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> buffers : released) {
+            buffers.clear();
+        }
+        retainedBytes = 0;
+    }
+    
+    /**
+     * Returns the native memory of the buffers currently acquired, in bytes.
+     */
+    public synchronized long getInUseBytes() {
+        expunge();
+        return inUseBytes;
+    }
+    
+    /**
+     * Returns the native memory of the released buffers kept for reuse, in bytes.
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+    
+    /**
+     * Returns the highest native memory held by the pool at once, in bytes.
+     */
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+    
+    /**
+     * Returns the number of requests served by a released buffer.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+    
+    /**
+     * Returns the number of requests that allocated a new buffer.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+    
+    /**
+     * Returns the native memory used by all the direct buffers of the virtual
+     * machine, in bytes, or -1 if it is not reported.
+     */
+    public static long getDirectMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Forgets the acquired buffers collected without being released.
+     */
+    private void expunge() {
+        for (Object reference = collected.poll(); reference != null; reference = collected.poll()) {
+            Acquired acquired = (Acquired) reference;
+            if (inUse.remove(acquired)) {
+                inUseBytes -= acquired.capacity;
+            }
+        }
+    }
+    
+    /**
+     * Returns the index of the size class of the size, or -1 if it is larger than
+     * the largest class.
+     */
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_CLASS_SHIFT) - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+    
+    /**
+     * Weak reference to an acquired buffer, equal to another one referring to
+     * the same buffer.
+     */
+    private static class Acquired extends WeakReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+    
+        Acquired(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+        }
+    
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Acquired)) {
+                return false;
+            }
+            ByteBuffer buffer = get();
+            return buffer != null && buffer == ((Acquired) o).get();
+        }
+    }
+
+}
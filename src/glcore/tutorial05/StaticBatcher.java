@@ -0,0 +1,385 @@
+package glcore.tutorial05;
+
+import glcore.tutorial05.GeometryBuilder.AttributeData;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Merges static geometries into a few large ones, to draw many small objects
+ * with a handful of draw calls. The geometries are given as builders with
+ * their model matrix and program; their positions and normals are transformed
+ * to world coordinates, and those with the same program, primitive type and
+ * attributes are concatenated into batches. The geometries of a group are
+ * sorted along a Morton curve of their centers before being split into batches
+ * of a maximum number of vertices, so that each batch covers a compact region
+ * and its bounds are useful for culling. The batches are drawn with the
+ * view projection matrix only, their vertices being already in world
+ * coordinates.
+ */
+public class StaticBatcher {
+
+    // the largest batches indexed by unsigned shorts
+    public static final int DEFAULT_MAX_VERTEX_COUNT = 65536;
+    
+    /**
+     * A merged geometry and the program it is drawn with.
+     */
+    public static class Batch {
+        private final Program program;
+        private final Geometry geometry;
+        private final int sourceCount;
+    
+        private Batch(Program program, Geometry geometry, int sourceCount) {
+            this.program = program;
+            this.geometry = geometry;
+            this.sourceCount = sourceCount;
+        }
+    
+        public Program getProgram() {
+            return program;
+        }
+    
+        public Geometry getGeometry() {
+            return geometry;
+        }
+    
+        /**
+         * Returns the bounds of the batch in world coordinates.
+         */
+        public Bounds getBounds() {
+            return geometry.getBounds();
+        }
+    
+        /**
+         * Returns the number of geometries merged in the batch.
+         */
+        public int getSourceCount() {
+            return sourceCount;
+        }
+    
+        public void render(GL4 gl4) {
+            geometry.render(gl4);
+        }
+    }
+    
+    private static class Source {
+        final GeometryBuilder builder;
+        final Matrix44 model;
+        final Program program;
+        Buffer indices;
+        int vertexCount;
+        final float[] center = new float[4];
+        int mortonCode;
+    
+        Source(GeometryBuilder builder, Matrix44 model, Program program) {
+            this.builder = builder;
+            this.model = model;
+            this.program = program;
+        }
+    }
+    
+    private final int positionAttributeIndex;
+    private final int normalAttributeIndex;
+    private final int maxVertexCount;
+    private final List<Source> sources = new ArrayList<Source>();
+    
+    public StaticBatcher(int positionAttributeIndex, int normalAttributeIndex) {
+        this(positionAttributeIndex, normalAttributeIndex, DEFAULT_MAX_VERTEX_COUNT);
+    }
+    
+    /**
+     * Creates a batcher transforming the positions, 3 floats, and the normals,
+     * 3 floats or GL_INT_2_10_10_10_REV, of the given attributes. The normal
+     * attribute index is -1 when the geometries have no normals.
+     */
+    public StaticBatcher(int positionAttributeIndex, int normalAttributeIndex, int maxVertexCount) {
+        this.positionAttributeIndex = positionAttributeIndex;
+        this.normalAttributeIndex = normalAttributeIndex;
+        this.maxVertexCount = maxVertexCount;
+    }
+    
+    /**
+     * Adds a geometry to merge, whose builder must not be used afterwards. Its
+     * primitive type must be GL_POINTS, GL_LINES or GL_TRIANGLES, which can
+     * be concatenated, and its positions and normals in the formats given to
+     * the constructor. A geometry that does not qualify is rejected here,
+     * its builder left untouched, so that building does not fail halfway.
+     */
+    public StaticBatcher add(GeometryBuilder builder, Matrix44 model, Program program) {
+        int primitiveType = builder.getPrimitiveType();
+        if (primitiveType != GL4.GL_POINTS && primitiveType != GL4.GL_LINES && primitiveType != GL4.GL_TRIANGLES) {
+            throw new IllegalArgumentException("Only lists of points, lines or triangles can be batched");
+        }
+        boolean hasPositions = false;
+        for (AttributeData attribute : builder.getAttributesData()) {
+            if (attribute.attributeIndex == positionAttributeIndex) {
+                if (attribute.dataType != GL4.GL_FLOAT || attribute.components != 3) {
+                    throw new IllegalArgumentException("Position attribute must be 3 GL_FLOAT");
+                }
+                hasPositions = true;
+            } else if (attribute.attributeIndex == normalAttributeIndex
+                    && !(attribute.dataType == GL4.GL_FLOAT && attribute.components == 3)
+                    && !(attribute.dataType == GL4.GL_INT_2_10_10_10_REV && attribute.normalized)) {
+                throw new IllegalArgumentException("Normal attribute must be 3 GL_FLOAT or normalized GL_INT_2_10_10_10_REV");
+            }
+        }
+        if (!hasPositions) {
+            throw new IllegalArgumentException("Geometry without position attribute");
+        }
+        sources.add(new Source(builder, new Matrix44().set(model), program));
+        return this;
+    }
+    
+    /**
+     * Merges the geometries added so far into batches, and resets their builders.
+     */
+    public List<Batch> build(GL4 gl4) {
+        Map<String, List<Source>> groups = new LinkedHashMap<String, List<Source>>();
+        for (Source source : sources) {
+            source.indices = source.builder.prepare();
+            source.vertexCount = source.builder.getVertexCount();
+            Bounds bounds = Bounds.of(positions(source.builder));
+            float[] center = bounds.getCenter();
+            source.center[0] = center[0];
+            source.center[1] = center[1];
+            source.center[2] = center[2];
+            source.center[3] = 1.0f;
+            source.model.transformInto(source.center, source.center);
+            String key = key(source);
+            List<Source> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Source>();
+                groups.put(key, group);
+            }
+            group.add(source);
+        }
+        List<Batch> batches = new ArrayList<Batch>();
+        for (List<Source> group : groups.values()) {
+            sortAlongCurve(group);
+            int start = 0;
+            int vertexCount = 0;
+            for (int i = 0; i < group.size(); i++) {
+                int count = group.get(i).vertexCount;
+                if (i > start && vertexCount + count > maxVertexCount) {
+                    batches.add(merge(gl4, group.subList(start, i)));
+                    start = i;
+                    vertexCount = 0;
+                }
+                vertexCount += count;
+            }
+            batches.add(merge(gl4, group.subList(start, group.size())));
+        }
+        for (Source source : sources) {
+            source.builder.reset();
+        }
+        sources.clear();
+        return batches;
+    }
+    
+    /**
+     * Returns the key of the geometries that can be merged with the source: same
+     * program, primitive type and attributes, in the same order.
+     */
+    private static String key(Source source) {
+        StringBuilder key = new StringBuilder();
+        key.append(source.program.getProgramId()).append(' ').append(source.builder.getPrimitiveType());
+        for (AttributeData attribute : source.builder.getAttributesData()) {
+            key.append(' ').append(attribute.attributeIndex).append(':').append(attribute.components)
+               .append(':').append(attribute.dataType).append(':').append(attribute.normalized);
+        }
+        return key.toString();
+    }
+    
+    /**
+     * Returns the positions of the builder, whose layout was checked by add.
+     */
+    private FloatBuffer positions(GeometryBuilder builder) {
+        for (AttributeData attribute : builder.getAttributesData()) {
+            if (attribute.attributeIndex == positionAttributeIndex) {
+                return (FloatBuffer) attribute.buffer;
+            }
+        }
+        throw new IllegalStateException("Geometry without position attribute");
+    }
+    
+    /**
+     * Sorts the sources by the Morton code of their center, quantized on 10 bits
+     * per axis within the box of the centers.
+     */
+    private static void sortAlongCurve(List<Source> group) {
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (Source source : group) {
+            for (int j = 0; j < 3; j++) {
+                min[j] = Math.min(min[j], source.center[j]);
+                max[j] = Math.max(max[j], source.center[j]);
+            }
+        }
+        for (Source source : group) {
+            int code = 0;
+            for (int j = 0; j < 3; j++) {
+                float extent = max[j] - min[j];
+                int cell = extent > 0.0f ? Math.min((int) ((source.center[j] - min[j]) / extent * 1024.0f), 1023) : 0;
+                code |= spread(cell) << j;
+            }
+            source.mortonCode = code;
+        }
+        Collections.sort(group, new Comparator<Source>() {
+            public int compare(Source s1, Source s2) {
+                return s1.mortonCode < s2.mortonCode ? -1 : s1.mortonCode > s2.mortonCode ? 1 : 0;
+            }
+        });
+    }
+    
+    /**
+     * Inserts 2 zero bits between each of the 10 low bits of the value.
+     */
+    private static int spread(int value) {
+        value = (value | value << 16) & 0x030000ff;
+        value = (value | value << 8) & 0x0300f00f;
+        value = (value | value << 4) & 0x030c30c3;
+        value = (value | value << 2) & 0x09249249;
+        return value;
+    }
+    
+    /**
+     * Concatenates the vertices of the sources, transformed to world
+     * coordinates, and their indices, offset by the vertices before them.
+     */
+    private Batch merge(GL4 gl4, List<Source> group) {
+        Source first = group.get(0);
+        List<AttributeData> layout = first.builder.getAttributesData();
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (Source source : group) {
+            vertexCount += source.vertexCount;
+            indexCount += source.indices != null ? source.indices.remaining() : source.vertexCount;
+        }
+        ByteBuffer[] data = new ByteBuffer[layout.size()];
+        for (int a = 0; a < layout.size(); a++) {
+            data[a] = StagingPool.SHARED.acquire(vertexSize(layout.get(a)) * vertexCount);
+        }
+        int[] indices = new int[indexCount];
+        int base = 0;
+        int at = 0;
+        float[] normalMatrix = new float[9];
+        for (Source source : group) {
+            List<AttributeData> attributes = source.builder.getAttributesData();
+            for (int a = 0; a < attributes.size(); a++) {
+                AttributeData attribute = attributes.get(a);
+                int size = vertexSize(attribute) * source.vertexCount;
+                ByteBuffer region = data[a].duplicate().order(ByteOrder.nativeOrder());
+                region.position(base * vertexSize(attribute)).limit(region.position() + size);
+                region = region.slice().order(ByteOrder.nativeOrder());
+                if (attribute.buffer instanceof FloatBuffer) {
+                    FloatBuffer floats = ((FloatBuffer) attribute.buffer).duplicate();
+                    floats.limit(floats.position() + size / 4);
+                    region.asFloatBuffer().put(floats);
+                } else {
+                    ByteBuffer bytes = ((ByteBuffer) attribute.buffer).duplicate();
+                    bytes.limit(bytes.position() + size);
+                    region.put(bytes).flip();
+                }
+                if (attribute.attributeIndex == positionAttributeIndex) {
+                    source.model.transformPoints(region.asFloatBuffer());
+                } else if (attribute.attributeIndex == normalAttributeIndex) {
+                    source.model.normalMatrixInto(normalMatrix, 0);
+                    transformNormals(attribute, region, normalMatrix);
+                }
+            }
+            if (source.indices instanceof ShortBuffer) {
+                ShortBuffer shorts = (ShortBuffer) source.indices;
+                for (int i = shorts.position(); i < shorts.limit(); i++) {
+                    indices[at++] = base + (shorts.get(i) & 0xffff);
+                }
+            } else if (source.indices != null) {
+                IntBuffer ints = (IntBuffer) source.indices;
+                for (int i = ints.position(); i < ints.limit(); i++) {
+                    indices[at++] = base + ints.get(i);
+                }
+            } else {
+                for (int i = 0; i < source.vertexCount; i++) {
+                    indices[at++] = base + i;
+                }
+            }
+            base += source.vertexCount;
+        }
+        GeometryBuilder builder = new GeometryBuilder();
+        for (int a = 0; a < layout.size(); a++) {
+            AttributeData attribute = layout.get(a);
+            builder.addAtribute(attribute.attributeIndex, attribute.components, attribute.dataType, attribute.normalized, data[a]);
+        }
+        Geometry geometry = builder
+                .setIndices(indices)
+                .setVertexCount(vertexCount)
+                .setPrimitiveType(first.builder.getPrimitiveType())
+                .setPositionAttribute(positionAttributeIndex)
+                .setInterleaved(true)
+                .build(gl4);
+        for (ByteBuffer buffer : data) {
+            StagingPool.SHARED.release(buffer);
+        }
+        return new Batch(first.program, geometry, group.size());
+    }
+    
+    /**
+     * Transforms the normals of the region by the normal matrix, in column-major
+     * order, and normalizes them again.
+     */
+    private static void transformNormals(AttributeData attribute, ByteBuffer region, float[] m) {
+        if (attribute.dataType == GL4.GL_FLOAT && attribute.components == 3) {
+            FloatBuffer normals = region.asFloatBuffer();
+            for (int i = 0; i + 2 < normals.limit(); i += 3) {
+                float x = normals.get(i), y = normals.get(i + 1), z = normals.get(i + 2);
+                float nx = m[0] * x + m[3] * y + m[6] * z;
+                float ny = m[1] * x + m[4] * y + m[7] * z;
+                float nz = m[2] * x + m[5] * y + m[8] * z;
+                float scale = inverseLength(nx, ny, nz);
+                normals.put(i, nx * scale).put(i + 1, ny * scale).put(i + 2, nz * scale);
+            }
+        } else {
+            // normalized GL_INT_2_10_10_10_REV, the other formats being rejected by add
+            for (int i = 0; i + 3 < region.limit(); i += 4) {
+                int packed = region.getInt(i);
+                float x = snorm10(packed), y = snorm10(packed >> 10), z = snorm10(packed >> 20);
+                float nx = m[0] * x + m[3] * y + m[6] * z;
+                float ny = m[1] * x + m[4] * y + m[7] * z;
+                float nz = m[2] * x + m[5] * y + m[8] * z;
+                float scale = inverseLength(nx, ny, nz);
+                // w is kept as is
+                region.putInt(i, VertexPacking.packSnorm2101010(nx * scale, ny * scale, nz * scale, 0.0f)
+                        | packed & 0xc0000000);
+            }
+        }
+    }
+    
+    /**
+     * Returns the inverse of the length of the vector, or 0 for the null vector.
+     */
+    private static float inverseLength(float x, float y, float z) {
+        float length2 = x * x + y * y + z * z;
+        return length2 > 0.0f ? 1.0f / (float) Math.sqrt(length2) : 0.0f;
+    }
+    
+    private static float snorm10(int bits) {
+        return Math.max(((bits << 22) >> 22) / 511.0f, -1.0f);
+    }
+    
+    private static int vertexSize(AttributeData attribute) {
+        return VertexPacking.vertexSize(attribute.dataType, attribute.components);
+    }
+
+}
@@ -3,6 +3,9 @@ package glcore.tutorial05;
 import static glcore.tutorial05.Utils.browse;
 import static glcore.tutorial05.Utils.loadTextResource;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
 import javax.media.opengl.GL4;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLEventListener;
@@ -14,10 +17,10 @@ import javax.media.opengl.GLEventListener;
  */
 public class Tutorial05 implements GLEventListener {
     
-    private static final int POSITION_ATTRIBUTE_INDEX = 0;
-    private static final int NORMAL_ATTRIBUTE_INDEX = 1;
+    static final int POSITION_ATTRIBUTE_INDEX = 0;
+    static final int NORMAL_ATTRIBUTE_INDEX = 1;
     
-    private static final float[] cubeVertices = {
+    static final float[] cubeVertices = {
         
         // back face
         1.0f, 1.0f, -1.0f,
@@ -68,7 +71,7 @@ public class Tutorial05 implements GLEventListener {
         1.0f, 1.0f, 1.0f
     };
     
-    private static final float[] cubeNormals = {
+    static final float[] cubeNormals = {
         // back face
         0.0f, 0.0f, -1.0f,
         0.0f, 0.0f, -1.0f,
@@ -118,6 +121,10 @@ public class Tutorial05 implements GLEventListener {
         1.0f, 0.0f, 0.0f
     };
     
+    // uploads per frame, the rest of the loaded geometries waiting for the next frames
+    private static final long UPLOAD_BUDGET_BYTES = 4 * 1024 * 1024;
+    private static final long UPLOAD_BUDGET_NANOS = 2000000;
+    
     private static long start = System.currentTimeMillis();
     
     // defines the projection volume
@@ -129,20 +136,38 @@ public class Tutorial05 implements GLEventListener {
     private static final float far = 10.0f;
     
     private Program program;
+    private final MeshLoader loader = new MeshLoader(1);
+    private CompletableFuture<Geometry> cubeLoading;
     private Geometry cube;
     
-    private float aspectRatio;
+    // scratch matrices and stack reused every frame to avoid allocating in display
+    final MatrixStack stack = new MatrixStack();
+    private final Matrix44 projection = new Matrix44();
+    private final Matrix44 translation = new Matrix44();
+    private final Matrix44 rotation = new Matrix44();
+    private final Quaternion rotationX = new Quaternion();
+    private final Quaternion rotationY = new Quaternion();
+    private final Frustum frustum = new Frustum();
+    
+    private float aspectRatio = 1.0f;
     
     public void init(GLAutoDrawable drawable) {
         
         GL4 gl4 = (GL4) drawable.getGL();
         
-        cube = new GeometryBuilder()
-                    .addAtribute(POSITION_ATTRIBUTE_INDEX, 3, GL4.GL_FLOAT, cubeVertices)
-                    .addAtribute(NORMAL_ATTRIBUTE_INDEX, 3, GL4.GL_FLOAT, cubeNormals)
-                    .setPrimitiveType(GL4.GL_TRIANGLES)
-                    .setVertexCount(36)
-                    .build(gl4);
+        // packed in the background and uploaded by display, not blocking the first frame
+        cubeLoading = loader.load(new Callable<GeometryBuilder>() {
+            public GeometryBuilder call() {
+                return new GeometryBuilder()
+                        .addAtribute(POSITION_ATTRIBUTE_INDEX, 3, GL4.GL_FLOAT, cubeVertices)
+                        .addAtribute(NORMAL_ATTRIBUTE_INDEX, 3, GL4.GL_INT_2_10_10_10_REV, cubeNormals)
+                        .setPositionAttribute(POSITION_ATTRIBUTE_INDEX)
+                        .setInterleaved(true)
+                        .setOptimize(true)
+                        .setPrimitiveType(GL4.GL_TRIANGLES)
+                        .setVertexCount(36);
+            }
+        });
         
         program = new ProgramBuilder()
                     .setVertexShaderSource(loadTextResource("shader.vert", this))
@@ -161,37 +186,75 @@ public class Tutorial05 implements GLEventListener {
 
     public void display(GLAutoDrawable drawable) {
         long elapsed = System.currentTimeMillis() - start;
-    	MatrixStack stack = new MatrixStack();
         GL4 gl4 = (GL4) drawable.getGL();
         gl4.glClear(GL4.GL_COLOR_BUFFER_BIT);
         gl4.glEnable(GL4.GL_CULL_FACE);
         program.use(gl4);
+        loader.upload(gl4, UPLOAD_BUDGET_BYTES, UPLOAD_BUDGET_NANOS);
+        if (cube == null && cubeLoading != null) {
+            if (cubeLoading.isCompletedExceptionally()) {
+                // reported once, the scene being drawn without the cube
+                System.err.println("Cube loading failed...");
+                try {
+                    cubeLoading.join();
+                } catch (RuntimeException e) {
+                    System.err.println(e.getCause() != null ? e.getCause() : e);
+                }
+                cubeLoading = null;
+            } else {
+                cube = cubeLoading.getNow(null);
+            }
+        }
 
         int mvpMatrix = gl4.glGetUniformLocation(program.getProgramId(), "mvpMatrix");
-        int mvMatrix = gl4.glGetUniformLocation(program.getProgramId(), "mvMatrix");
+        int normalMatrix = gl4.glGetUniformLocation(program.getProgramId(), "normalMatrix");
         int color = gl4.glGetUniformLocation(program.getProgramId(), "color");
         int lightDir = gl4.glGetUniformLocation(program.getProgramId(), "lightDir");
-        stack.pushProjection(Matrix44.frustum(left, right, bottom / aspectRatio, top / aspectRatio, near, far));
-        stack.pushModelView(Matrix44.translate(0.0f, 0.0f, -3.0f));
-        stack.pushModelView(Matrix44.rotate(elapsed / 10, 1.0f, 0.0f, 0.0f));
-        stack.pushModelView(Matrix44.rotate(elapsed / 5, 0.0f, 1.0f, 0.0f));
+        pushTransforms(elapsed);
         gl4.glUniformMatrix4fv(mvpMatrix, 1, false, stack.getModelViewProjectionMatrix().raw(), 0);
-        gl4.glUniformMatrix4fv(mvMatrix, 1, false, stack.getModelViewMatrix().raw(), 0);
+        gl4.glUniformMatrix3fv(normalMatrix, 1, false, stack.getNormalMatrix(), 0);
         gl4.glUniform3f(color, 0.0f, 1.0f, 0.0f);
         gl4.glUniform3f(lightDir, 0.0f, 0.0f, -1.0f);
-        cube.render(gl4);
-        stack.popModelView();
+        if (cube != null && isVisible(cube.getBounds())) {
+            cube.render(gl4);
+        }
+        popTransforms();
+        
+        gl4.glFlush();
+    }
+    
+    /**
+     * Pushes the projection and model view matrices of the frame drawn at
+     * elapsed milliseconds, reusing the scratch matrices.
+     */
+    void pushTransforms(long elapsed) {
+        stack.reset();
+        stack.pushProjection(projection.setFrustum(left, right, bottom / aspectRatio, top / aspectRatio, near, far));
+        stack.pushModelView(translation.setTranslate(0.0f, 0.0f, -3.0f));
+        // both rotations are composed as quaternions and pushed as a single matrix
+        rotationX.setRotate(elapsed / 10, 1.0f, 0.0f, 0.0f);
+        rotationY.setRotate(elapsed / 5, 0.0f, 1.0f, 0.0f);
+        stack.pushModelView(rotationX.multInto(rotationY, rotationX).toMatrix(rotation));
+    }
+    
+    void popTransforms() {
         stack.popModelView();
         stack.popModelView();
         stack.popProjection();
-        
-        gl4.glFlush();
+    }
+    
+    /**
+     * Returns whether the bounds intersect the view frustum of the pushed transforms.
+     */
+    boolean isVisible(Bounds bounds) {
+        return frustum.set(stack.getModelViewProjectionMatrix()).intersects(bounds);
     }
 
     public void displayChanged(GLAutoDrawable drawable, boolean modeChanged, boolean deviceChanged) {
     }
 
     public void dispose(GLAutoDrawable drawable) {
+        loader.shutdown();
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,145 @@
+package glcore.tutorial05;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.media.opengl.GL4;
+
+/**
+ * Quantizers converting float vertex data to the compact formats understood by
+ * glVertexAttribPointer. Signed normalized values follow the OpenGL 4.2 rule,
+ * -1 and 1 mapping to the smallest and largest integers but one.
+ */
+public class VertexPacking {
+
+    private VertexPacking() {
+    }
+
+    /**
+     * Returns the half float nearest to the value, ties to even.
+     */
+    public static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if (abs >= 0x7f800000) {
+            // infinity stays infinity, NaN stays a quiet NaN
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if (abs >= 0x477ff000) {
+            // 65520 and above round to infinity
+            return (short) (sign | 0x7c00);
+        }
+        if (abs < 0x38800000) {
+            // below 2^-14, subnormal in units of 2^-24
+            int exponent = abs >>> 23;
+            if (exponent < 102) {
+                return (short) sign;
+            }
+            int mantissa = (abs & 0x7fffff) | 0x800000;
+            int shift = 126 - exponent;
+            int half = mantissa >>> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        // rebiases the exponent from 127 to 15 and rounds the 13 dropped bits
+        int half = abs - 0x38000000;
+        half += 0xfff + ((half >>> 13) & 1);
+        return (short) (sign | (half >>> 13));
+    }
+
+    public static short toSnorm16(float value) {
+        return (short) Math.round(Math.max(-1.0f, Math.min(1.0f, value)) * 32767.0f);
+    }
+
+    public static byte toSnorm8(float value) {
+        return (byte) Math.round(Math.max(-1.0f, Math.min(1.0f, value)) * 127.0f);
+    }
+
+    /**
+     * Packs the signed normalized vector in the GL_INT_2_10_10_10_REV layout,
+     * x in the low bits and w on the 2 high bits.
+     */
+    public static int packSnorm2101010(float x, float y, float z, float w) {
+        return (snorm(x, 511) & 0x3ff)
+                | (snorm(y, 511) & 0x3ff) << 10
+                | (snorm(z, 511) & 0x3ff) << 20
+                | snorm(w, 1) << 30;
+    }
+
+    private static int snorm(float value, int max) {
+        return Math.round(Math.max(-1.0f, Math.min(1.0f, value)) * max);
+    }
+
+    /**
+     * Returns the size in bytes of the data of one vertex for an attribute of
+     * the given data type and number of components.
+     */
+    public static int vertexSize(int dataType, int components) {
+        switch (dataType) {
+        case GL4.GL_FLOAT: return 4 * components;
+        case GL4.GL_HALF_FLOAT: return 2 * components;
+        case GL4.GL_SHORT: return 2 * components;
+        case GL4.GL_BYTE: return components;
+        case GL4.GL_UNSIGNED_BYTE: return components;
+        case GL4.GL_INT_2_10_10_10_REV: return 4;
+        default: throw new UnsupportedOperationException("Data type not supported");
+        }
+    }
+
+    /**
+     * Converts the vertex data, given as components floats per vertex, to the
+     * data type, GL_HALF_FLOAT, GL_SHORT, GL_BYTE or GL_INT_2_10_10_10_REV. The
+     * vectors packed in GL_INT_2_10_10_10_REV have 3 or 4 components, w being 0
+     * for 3.
+     */
+    public static ByteBuffer pack(int dataType, int components, float[] data) {
+        int vertexCount = data.length / components;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(vertexSize(dataType, components) * vertexCount)
+                .order(ByteOrder.nativeOrder());
+        pack(dataType, components, data, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Converts the vertex data like {@link #pack(int, int, float[])}, writing it
+     * at the position of the buffer, which must be in native order.
+     */
+    public static void pack(int dataType, int components, float[] data, ByteBuffer buffer) {
+        int vertexCount = data.length / components;
+        switch (dataType) {
+        case GL4.GL_HALF_FLOAT:
+            for (float value : data) {
+                buffer.putShort(toHalf(value));
+            }
+            break;
+        case GL4.GL_SHORT:
+            for (float value : data) {
+                buffer.putShort(toSnorm16(value));
+            }
+            break;
+        case GL4.GL_BYTE:
+            for (float value : data) {
+                buffer.put(toSnorm8(value));
+            }
+            break;
+        case GL4.GL_INT_2_10_10_10_REV:
+            if (components != 3 && components != 4) {
+                throw new IllegalArgumentException("GL_INT_2_10_10_10_REV packs 3 or 4 components");
+            }
+            for (int v = 0; v < vertexCount; v++) {
+                int i = v * components;
+                float w = components == 4 ? data[i+3] : 0.0f;
+                buffer.putInt(packSnorm2101010(data[i], data[i+1], data[i+2], w));
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("Data type not supported");
+        }
+    }
+}
@@ -1,7 +1,7 @@
 #version 330 core
 
 uniform mat4 mvpMatrix;
-uniform mat4 mvMatrix;
+uniform mat3 normalMatrix;
 uniform vec3 color;
 uniform vec3 lightDir;
 
@@ -14,8 +14,9 @@ void main(void)
 	vec3 normalEye;
 	float dotProduct;
 	
-	/* We transform the normal in eye coordinates. */
-	normalEye = vec3(mvMatrix * vec4(vNormal, 0.0f));
+	/* We transform the normal in eye coordinates. The normal matrix keeps it
+       perpendicular to the surface even when the model view matrix scales. */
+	normalEye = normalize(normalMatrix * vNormal);
 	
 	/* We compute the dot product of the normal in eye coordinates by the light direction.
        The value will be positive when the diffuse light should be ignored, negative otherwise. */